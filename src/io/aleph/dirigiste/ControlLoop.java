@@ -0,0 +1,68 @@
+package io.aleph.dirigiste;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invokes the sampling and control tick of an Executor or Pool at a fixed period, either on its
+ * own daemon thread, or on a scheduler shared with other instances.  On a shared scheduler, each
+ * loop starts at a random offset within its period, so that loops with the same period don't all
+ * fire at once.
+ */
+class ControlLoop {
+
+    private volatile boolean _isStopped = false;
+    private volatile ScheduledFuture<?> _future;
+
+    private ControlLoop() {
+    }
+
+    /**
+     * @param tick  the tick to invoke each period
+     * @param period  the period, in milliseconds
+     * @param threadName  the name of the thread to create, if 'scheduler' is null
+     * @param scheduler  the scheduler to run the tick on, or null if it should get its own thread
+     */
+    static ControlLoop start(final Runnable tick, final long period, String threadName, ScheduledExecutorService scheduler) {
+        final ControlLoop loop = new ControlLoop();
+
+        if (scheduler != null) {
+            long offset = ThreadLocalRandom.current().nextLong(Math.max(1, period));
+            loop._future = scheduler.scheduleAtFixedRate(tick, offset, Math.max(1, period), TimeUnit.MILLISECONDS);
+            return loop;
+        }
+
+        Thread t =
+            new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while (!loop._isStopped) {
+                                long start = System.currentTimeMillis();
+                                tick.run();
+                                Thread.sleep(Math.max(0, period - (System.currentTimeMillis() - start)));
+                            }
+                        } catch (InterruptedException e) {
+
+                        }
+                    }
+                },
+                threadName);
+        t.setDaemon(true);
+        t.start();
+
+        return loop;
+    }
+
+    /**
+     * Stops invoking the tick, though a tick which is already running will complete.
+     */
+    void stop() {
+        _isStopped = true;
+        ScheduledFuture<?> future = _future;
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -4,7 +4,11 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Executor extends AbstractExecutorService {
 
@@ -21,19 +25,79 @@ public class Executor extends AbstractExecutorService {
          * @return if positive, the number of threads that should be spun up, if negative the number of threads that should be spun down
          */
         int adjustment(Stats stats);
+
+        /**
+         * Invoked instead of 'adjustment(stats)' by executors with a LaneQueue, which by default
+         * ignores the per-lane statistics.
+         *
+         * @param stats the aggregate statistics gathered since the last call to 'adjustment'
+         * @param laneStats the statistics for each lane, which only include queue length, queue latency, task latency, and task arrival rate
+         * @return if positive, the number of threads that should be spun up, if negative the number of threads that should be spun down
+         */
+        default int adjustment(Stats stats, Map<String,Stats> laneStats) {
+            return adjustment(stats);
+        }
+
+        /**
+         * Invoked by a worker just before it runs each task whose queue latency is known, which
+         * includes every task submitted via 'submit' or 'invokeAll', and tasks submitted via
+         * 'execute' if the QUEUE_LATENCY or TASK_LATENCY metrics are gathered or
+         * 'observesQueueLatency' returns true.  Only tasks submitted via 'submit' or 'invokeAll'
+         * can be shed, if this returns true the task isn't run, and its future completes with a
+         * RejectedExecutionException.  Never sheds tasks by default.
+         *
+         * @param queueLatency  the time the task spent waiting to be run, in nanoseconds
+         * @return whether the task should be shed
+         */
+        default boolean shouldShed(long queueLatency) {
+            return false;
+        }
+
+        /**
+         * @return whether every task's queue latency should be passed to 'shouldShed', even if no latency metrics are gathered, false by default
+         */
+        default boolean observesQueueLatency() {
+            return false;
+        }
+
+        /**
+         * @return whether negative adjustments should be applied while tasks are queued, false by default, in which case threads are only spun down once the queue is empty
+         */
+        default boolean shrinksWithBacklog() {
+            return false;
+        }
+    }
+
+    // padding, so that each worker's counters sit on their own cache lines
+    static class LeftPadding {
+        long p0, p1, p2, p3, p4, p5, p6;
+    }
+
+    // cumulative counters which are only written by the worker, and read by the control loop
+    static class WorkerCounters extends LeftPadding {
+        volatile long _birth = System.nanoTime();
+
+        // odd while the worker is folding a finished task into '_busy' and clearing '_start'
+        volatile long _seq = 0;
+        volatile long _start = 0;
+        volatile long _busy = 0;
+        volatile long _completed = 0;
+    }
+
+    static class PaddedWorkerCounters extends WorkerCounters {
+        long p8, p9, p10, p11, p12, p13, p14;
     }
 
     class Worker {
         public volatile Runnable _runnable;
         public volatile boolean _isShutdown = false;
 
-        private final AtomicInteger _completed = new AtomicInteger(0);
+        private final PaddedWorkerCounters _counters = new PaddedWorkerCounters();
 
-        private long _birth = System.nanoTime();
-        private final AtomicLong _start = new AtomicLong(0);
-        private final AtomicLong _totalDuration = new AtomicLong(0);
+        // the counter values at the last sample, only touched by the control loop
+        private long _lastBusy = 0;
+        private long _lastCompleted = 0;
 
-        private final CountDownLatch _latch = new CountDownLatch(1);
         private final Thread _thread;
 
         Worker() {
@@ -46,16 +110,20 @@ public class Executor extends AbstractExecutorService {
                     public void run() {
                         try {
 
-                            _birth = System.nanoTime();
+                            final WorkerCounters counters = _counters;
+                            counters._birth = System.nanoTime();
 
                             while (!_isShutdown) {
-                                Runnable r = (Runnable) _queue.poll(1000, TimeUnit.MILLISECONDS);
+                                Runnable r = spin();
+                                if (r == null) {
+                                    r = _queue.poll(1000, TimeUnit.MILLISECONDS);
+                                }
 
                                 if (r != null) {
                                     _runnable = r;
 
                                     if (workerUtilization) {
-                                        _start.set(System.nanoTime());
+                                        counters._start = System.nanoTime();
                                     }
 
                                     try {
@@ -65,12 +133,18 @@ public class Executor extends AbstractExecutorService {
                                     } finally {
                                         _runnable = null;
 
+                                        // only this thread writes to the counters, so no atomic operations
+                                        // are necessary
                                         if (workerUtilization) {
-                                            _totalDuration.addAndGet(System.nanoTime() - _start.getAndSet(0));
+                                            long end = System.nanoTime();
+                                            counters._seq = counters._seq + 1;
+                                            counters._busy = counters._busy + (end - counters._start);
+                                            counters._start = 0;
+                                            counters._seq = counters._seq + 1;
                                         }
 
                                         if (taskCompletionRate) {
-                                            _completed.incrementAndGet();
+                                            counters._completed = counters._completed + 1;
                                         }
                                     }
                                 }
@@ -78,26 +152,82 @@ public class Executor extends AbstractExecutorService {
                         } catch (InterruptedException e) {
 
                         }
+
+                        // hand off anything left on this worker's deque
+                        if (_queue instanceof WorkStealingQueue) {
+                            ((WorkStealingQueue) _queue).retire();
+                        }
+
                         _workers.remove(Worker.this);
-                        _latch.countDown();
+                        checkTermination();
                     }
                 };
 
             _thread = _threadFactory.newThread(runnable);
+        }
+
+        void start() {
             _thread.start();
         }
 
+        /**
+         * Polls the queue without blocking until the current spin budget is exhausted, giving
+         * submitters a chance to hand off a task without unparking a thread.
+         */
+        private Runnable spin() {
+            long spinNanos = _spinNanos;
+            if (spinNanos <= 0) {
+                return null;
+            }
+
+            _spinning.incrementAndGet();
+            try {
+                long deadline = System.nanoTime() + spinNanos;
+                while (!_isShutdown) {
+                    Runnable r = _queue.poll();
+                    if (r != null || System.nanoTime() - deadline >= 0) {
+                        return r;
+                    }
+                    Thread.yield();
+                }
+                return null;
+            } finally {
+                _spinning.decrementAndGet();
+            }
+        }
+
         public double utilization(long t0, long t1) {
-            long start = _start.getAndSet(t1);
-            if (start == 0) {
-                _start.compareAndSet(t1, 0);
+            WorkerCounters counters = _counters;
+
+            // if a task ends while we're reading, try again, a task starting is a single write
+            long seq, start, busy;
+            do {
+                seq = counters._seq;
+                start = counters._start;
+                busy = counters._busy;
+            } while ((seq & 1) != 0 || seq != counters._seq);
+
+            if (start != 0) {
+                busy += t1 - start;
             }
-            long active = _totalDuration.getAndSet(0) + (start == 0 ? 0 : t1 - start);
-            long total = t1 - Math.max(t0, _birth);
+
+            long active = busy - _lastBusy;
+            _lastBusy = busy;
+            long total = t1 - Math.max(t0, counters._birth);
 
             return (double) active / (double) total;
         }
 
+        /**
+         * @return the number of tasks completed since the last call
+         */
+        public long completed() {
+            long completed = _counters._completed;
+            long n = completed - _lastCompleted;
+            _lastCompleted = completed;
+            return n;
+        }
+
         public boolean isActive() {
             return _runnable != null;
         }
@@ -116,23 +246,96 @@ public class Executor extends AbstractExecutorService {
         }
     }
 
+    // a task submitted to the executor, which records its own latency
+    class Task<T> extends FutureTask<T> {
+
+        final long _enqueue = System.nanoTime();
+
+        // the lane the task was enqueued in, if the executor has a LaneQueue and measures task latency
+        LaneQueue.Lane _lane = null;
+
+        // whether the submitter holds the future, and so will see if the task is shed
+        private final boolean _sheddable;
+
+        Task(Callable<T> callable) {
+            super(callable);
+            _sheddable = true;
+        }
+
+        Task(Runnable runnable, T value, boolean sheddable) {
+            super(runnable, value);
+            _sheddable = sheddable;
+        }
+
+        Executor executor() {
+            return Executor.this;
+        }
+
+        @Override
+        public void run() {
+            long queueLatency = System.nanoTime() - _enqueue;
+            if (_measureQueueLatency) {
+                _queueLatencies.get().sample(queueLatency);
+            }
+
+            // every task's latency is observed, but only those whose submitters hold the future are shed
+            if (_controller.shouldShed(queueLatency) && _sheddable) {
+                if (_measureTaskRejectionRate) {
+                    _rejectedTasks.increment();
+                }
+                setException(new RejectedExecutionException("task shed after waiting " + queueLatency + "ns"));
+                return;
+            }
+
+            try {
+                super.run();
+            } finally {
+                if (_measureTaskLatency) {
+                    long taskLatency = System.nanoTime() - _enqueue;
+                    _taskLatencies.get().sample(taskLatency);
+                    if (_lane != null) {
+                        _lane.sampleTaskLatency(taskLatency);
+                    }
+                }
+            }
+        }
+    }
+
     private static AtomicInteger _numExecutors = new AtomicInteger(0);
 
+    // how long a submitter will wait for a spinning worker to take its task
+    private static final long HANDOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
     private final ThreadFactory _threadFactory;
-    private final BlockingQueue _queue;
-    private final CopyOnWriteArrayList<Worker> _workers = new CopyOnWriteArrayList<Worker>();
+    private final BlockingQueue<Runnable> _queue;
+
+    // the queue, if it's a LaneQueue, otherwise null
+    private final LaneQueue _laneQueue;
+    private final Set<Worker> _workers = ConcurrentHashMap.newKeySet();
     private final AtomicInteger _numWorkers = new AtomicInteger(0);
-    private final AtomicInteger _incomingTasks = new AtomicInteger(0);
-    private final AtomicInteger _rejectedTasks = new AtomicInteger(0);
+    private final LongAdder _incomingTasks = new LongAdder();
+    private final LongAdder _rejectedTasks = new LongAdder();
     private final Controller _controller;
 
+    // the maximum and current time an idle worker will spin before parking, and the number spinning
+    private volatile long _maxSpinNanos = 0;
+    private volatile long _spinNanos = 0;
+    private final AtomicInteger _spinning = new AtomicInteger(0);
+
+    // the thresholds past which the control loop will add workers between control periods
+    private volatile int _burstQueueLength = Integer.MAX_VALUE;
+    private volatile long _burstQueueLatency = Long.MAX_VALUE;
+    private volatile int _burstStep = 0;
+
     private final EnumSet _metrics;
     private final boolean _measureQueueLatency;
     private final boolean _measureTaskLatency;
     private final boolean _measureTaskArrivalRate;
     private final boolean _measureTaskRejectionRate;
+    private final boolean _observeQueueLatency;
 
-    private boolean _isShutdown = false;
+    private volatile boolean _isShutdown = false;
+    private final CountDownLatch _terminated = new CountDownLatch(1);
 
     private final AtomicReference<Stats.UniformLongReservoir> _queueLatencies =
         new AtomicReference<Stats.UniformLongReservoir>(new Stats.UniformLongReservoir());
@@ -156,6 +359,15 @@ public class Executor extends AbstractExecutorService {
         new AtomicReference<Stats.UniformDoubleReservoir>(new Stats.UniformDoubleReservoir());
 
     private volatile Stats _stats = Stats.EMPTY;
+    private volatile Map<String,Stats> _laneStats = Collections.emptyMap();
+
+    // the control loop's state, only touched by 'tick'
+    private final int _iterations;
+    private final double _samplesPerSecond;
+    private int _iteration = 0;
+    private long _utilizationSample = 0;
+
+    private final ControlLoop _controlLoop;
 
     /**
      * @param threadFactory the ThreadFactory used by the executor
@@ -167,7 +379,26 @@ public class Executor extends AbstractExecutorService {
      * @param controlPeriod  the period at which the controller will be invoked with the gathered statistics
      * @param unit  the time unit for the #samplePeriod and #controlPeriod
      */
+    @SuppressWarnings("unchecked")
     public Executor(ThreadFactory threadFactory, BlockingQueue queue, Executor.Controller controller, int initialThreadCount, EnumSet<Stats.Metric> metrics, long samplePeriod, long controlPeriod, TimeUnit unit) {
+        this(threadFactory, queue, controller, initialThreadCount, metrics, samplePeriod, controlPeriod, unit, null);
+    }
+
+    /**
+     * An executor whose control loop runs on 'scheduler' rather than its own thread, which allows
+     * many executors and pools to share a few threads.  See Executors.controlScheduler().
+     *
+     * @param threadFactory the ThreadFactory used by the executor
+     * @param queue  the queue that holds Runnable objects waiting to be executed
+     * @param controller  the Controller object that updates the thread count
+     * @param metrics  the metrics that will be collected and delivered to the controller
+     * @param initialThreadCount  the number of threads that the executor will begin with
+     * @param samplePeriod  the period at which the executor's state will be sampled
+     * @param controlPeriod  the period at which the controller will be invoked with the gathered statistics
+     * @param unit  the time unit for the #samplePeriod and #controlPeriod
+     * @param scheduler  the scheduler which runs the control loop, or null if it should have its own thread
+     */
+    public Executor(ThreadFactory threadFactory, BlockingQueue<Runnable> queue, Executor.Controller controller, int initialThreadCount, EnumSet<Stats.Metric> metrics, long samplePeriod, long controlPeriod, TimeUnit unit, ScheduledExecutorService scheduler) {
 
         _threadFactory = threadFactory;
         _queue = queue;
@@ -178,19 +409,26 @@ public class Executor extends AbstractExecutorService {
         _measureTaskLatency = _metrics.contains(Stats.Metric.TASK_LATENCY);
         _measureTaskArrivalRate = _metrics.contains(Stats.Metric.TASK_ARRIVAL_RATE);
         _measureTaskRejectionRate = _metrics.contains(Stats.Metric.TASK_REJECTION_RATE);
+        _observeQueueLatency = _controller.observesQueueLatency();
 
-        final int duration = (int) unit.toMillis(samplePeriod);
-        final int iterations = (int) (controlPeriod / samplePeriod);
+        _laneQueue = queue instanceof LaneQueue ? (LaneQueue) queue : null;
+        if (_laneQueue != null) {
+            _laneQueue.measure(metrics);
+        }
+
+        int duration = (int) unit.toMillis(samplePeriod);
+        _iterations = (int) (controlPeriod / samplePeriod);
+        _samplesPerSecond = 1000.0 / duration;
 
-        Thread t =
-            new Thread(new Runnable() {
+        _controlLoop =
+            ControlLoop.start(new Runnable() {
                     public void run() {
-                        startControlLoop(duration, iterations);
+                        tick();
                     }
                 },
-                "dirigiste-executor-controller-" + _numExecutors.getAndIncrement());
-        t.setDaemon(true);
-        t.start();
+                duration,
+                "dirigiste-executor-controller-" + _numExecutors.getAndIncrement(),
+                scheduler);
 
         for (int i = 0; i < Math.max(1, initialThreadCount); i++) {
             startWorker();
@@ -227,21 +465,42 @@ public class Executor extends AbstractExecutorService {
              _taskLatencies.get().toArray());
     }
 
-    @Override
-    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-
-        long duration = unit.toMillis(timeout);
-        long start = System.currentTimeMillis();
+    /**
+     * Sets how long an idle worker will spin, polling the queue, before parking.  This reduces
+     * handoff latency for bursty workloads, at the cost of CPU.  If the TASK_ARRIVAL_RATE metric
+     * is gathered, workers will only spin when tasks are arriving often enough that a spinning
+     * worker is likely to receive one.  By default, workers park immediately.
+     *
+     * @param duration  the maximum duration of the spin, or 0 to disable spinning
+     * @param unit  the time unit for 'duration'
+     */
+    public void setIdleSpin(long duration, TimeUnit unit) {
+        _maxSpinNanos = unit.toNanos(duration);
+        _spinNanos = _maxSpinNanos;
+    }
 
-        for (Worker w : _workers) {
-            long remaining = (start + duration) - System.currentTimeMillis();
-            if (remaining < 0) {
-                return false;
-            }
-            w._latch.await(remaining, TimeUnit.MILLISECONDS);
-        }
+    /**
+     * Enables fast scale-up between control periods.  On every sample, if the queue holds at least
+     * 'queueLength' tasks, or the oldest task has waited at least 'queueLatency', up to 'step' new
+     * workers are started, as long as the controller allows them.  Scale-down still only happens
+     * once per control period.  The age of the oldest task is only known if the QUEUE_LATENCY or
+     * TASK_LATENCY metric is gathered, and queues which don't hold tasks, like SynchronousQueue,
+     * will never trigger a scale-up.
+     *
+     * @param queueLength  the queue length which triggers a scale-up
+     * @param queueLatency  the queue latency which triggers a scale-up
+     * @param unit  the time unit for 'queueLatency'
+     * @param step  the maximum number of workers started per sample, or 0 to disable this
+     */
+    public void setBurstScaleUp(int queueLength, long queueLatency, TimeUnit unit, int step) {
+        _burstQueueLength = queueLength;
+        _burstQueueLatency = unit.toNanos(queueLatency);
+        _burstStep = step;
+    }
 
-        return true;
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return _terminated.await(timeout, unit);
     }
 
     /**
@@ -260,38 +519,158 @@ public class Executor extends AbstractExecutorService {
         }
 
         if (_measureTaskArrivalRate) {
-            _incomingTasks.incrementAndGet();
+            _incomingTasks.increment();
         }
 
-        if (_measureTaskLatency || _measureQueueLatency) {
-            final long enqueue = System.nanoTime();
-            final Runnable r = runnable;
-            runnable = new Runnable() {
-                    public void run() {
+        runnable = instrument(runnable);
 
-                        if (_measureQueueLatency) {
-                            _queueLatencies.get().sample(System.nanoTime() - enqueue);
-                        }
+        if (!offer(runnable) || _workers.isEmpty()) {
+            startWorker();
+            _queue.put(runnable);
+        }
+    }
+
+    /**
+     * Submits a batch of tasks at once.  Arrivals are counted once for the whole batch, and if
+     * there aren't enough idle workers, new workers are started for the batch as a whole.  At most
+     * one new worker per existing worker is started per batch, so a large fan-out won't spin up a
+     * thread per task.  Tasks that can't be handed off immediately will wait for a worker, so
+     * like 'executeWithoutRejection', this may block.
+     *
+     * RejectedExecutionException will only be thrown if the executor is shut down, or if it has
+     * no workers and the controller won't allow one to be started.
+     */
+    public void executeAll(Collection<? extends Runnable> runnables) throws NullPointerException, InterruptedException {
+        if (_isShutdown) {
+            throw new RejectedExecutionException("Executor is shutdown!");
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>(runnables.size());
+        for (Runnable r : runnables) {
+            if (r == null) {
+                throw new NullPointerException();
+            }
+            tasks.add(instrument(r));
+        }
+
+        int n = tasks.size();
+        if (_measureTaskArrivalRate) {
+            _incomingTasks.add(n);
+        }
+
+        int accepted;
+        if (_queue instanceof WorkStealingQueue) {
+            accepted = ((WorkStealingQueue) _queue).offerAll(tasks);
+        } else {
+            accepted = 0;
+            while (accepted < n && offer(tasks.get(accepted))) {
+                accepted++;
+            }
+        }
+
+        int remaining = n - accepted;
+        if (remaining == 0 && !_workers.isEmpty()) {
+            return;
+        }
+
+        int toStart = Math.max(1, Math.min(remaining, _numWorkers.get()));
+        for (int i = 0; i < toStart; i++) {
+            if (!startWorker()) {
+                break;
+            }
+        }
+
+        if (_workers.isEmpty()) {
+            if (_measureTaskRejectionRate) {
+                _rejectedTasks.add(remaining);
+            }
+            throw new RejectedExecutionException();
+        }
+
+        for (int i = accepted; i < n; i++) {
+            _queue.put(tasks.get(i));
+        }
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new Task<T>(callable);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new Task<T>(runnable, value, true);
+    }
+
+    /**
+     * Like AbstractExecutorService's implementation, but submits the tasks via 'executeAll'.
+     */
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callables) throws InterruptedException {
+        List<Future<T>> futures = new ArrayList<Future<T>>(callables.size());
+        List<Runnable> tasks = new ArrayList<Runnable>(callables.size());
+        for (Callable<T> c : callables) {
+            RunnableFuture<T> f = newTaskFor(c);
+            futures.add(f);
+            tasks.add(f);
+        }
+
+        boolean done = false;
+        try {
+            executeAll(tasks);
+            for (Future<T> f : futures) {
+                if (!f.isDone()) {
+                    try {
+                        f.get();
+                    } catch (CancellationException e) {
+
+                    } catch (ExecutionException e) {
 
-                        try {
-                            r.run();
-                        } finally {
-                            if (_measureTaskLatency) {
-                                _taskLatencies.get().sample(System.nanoTime() - enqueue);
-                            }
-                        }
                     }
-                };
+                }
+            }
+            done = true;
+            return futures;
+        } finally {
+            if (!done) {
+                for (Future<T> f : futures) {
+                    f.cancel(true);
+                }
+            }
         }
+    }
 
-        if (!_queue.offer(runnable) || _workers.isEmpty()) {
-            startWorker();
-            _queue.put(runnable);
+    /**
+     * @return the last per-lane statistics given to the control loop, which will be empty unless the executor uses a LaneQueue
+     */
+    public Map<String,Stats> getLastLaneStats() {
+        return _laneStats;
+    }
+
+    /**
+     * Returns a view of the executor which submits tasks to a particular lane.  This requires that
+     * the executor was created with a LaneQueue.
+     *
+     * @param name  the name of the lane
+     */
+    public java.util.concurrent.Executor lane(final String name) {
+        if (_laneQueue == null || !_laneQueue.hasLane(name)) {
+            throw new IllegalArgumentException("no such lane: " + name);
         }
+
+        return new java.util.concurrent.Executor() {
+            public void execute(Runnable runnable) {
+                Executor.this.execute(runnable, name);
+            }
+        };
     }
 
     @Override
     public void execute(Runnable runnable) throws NullPointerException, RejectedExecutionException {
+        execute(runnable, null);
+    }
+
+    private void execute(Runnable runnable, String lane) throws NullPointerException, RejectedExecutionException {
         if (runnable == null) {
             throw new NullPointerException();
         }
@@ -301,43 +680,28 @@ public class Executor extends AbstractExecutorService {
         }
 
         if (_measureTaskArrivalRate) {
-            _incomingTasks.incrementAndGet();
+            _incomingTasks.increment();
         }
 
-        if (_measureTaskLatency || _measureQueueLatency) {
-            final long enqueue = System.nanoTime();
-            final Runnable r = runnable;
-            runnable = new Runnable() {
-                    public void run() {
-
-                        if (_measureQueueLatency) {
-                            _queueLatencies.get().sample(System.nanoTime() - enqueue);
-                        }
-
-                        try {
-                            r.run();
-                        } finally {
-                            if (_measureTaskLatency) {
-                                _taskLatencies.get().sample(System.nanoTime() - enqueue);
-                            }
-                        }
-                    }
-                };
-        }
+        runnable = instrument(runnable);
 
-        if (!_queue.offer(runnable) || _workers.isEmpty()) {
+        if (!offer(runnable, lane) || _workers.isEmpty()) {
             if (startWorker()) {
                 try {
-                    _queue.put(runnable);
+                    if (lane != null) {
+                        _laneQueue.put(lane, runnable);
+                    } else {
+                        _queue.put(runnable);
+                    }
                 } catch (InterruptedException e) {
                     if (_measureTaskRejectionRate) {
-                        _rejectedTasks.incrementAndGet();
+                        _rejectedTasks.increment();
                     }
                     throw new RejectedExecutionException();
                 }
             } else {
                 if (_measureTaskRejectionRate) {
-                    _rejectedTasks.incrementAndGet();
+                    _rejectedTasks.increment();
                 }
                 throw new RejectedExecutionException();
             }
@@ -351,23 +715,26 @@ public class Executor extends AbstractExecutorService {
 
     @Override
     public boolean isTerminated() {
-        return _isShutdown && _workers.isEmpty();
+        return _terminated.getCount() == 0;
     }
 
     @Override
     public void shutdown() {
         synchronized (this) {
             _isShutdown = true;
+            _controlLoop.stop();
             for (Worker w : _workers) {
                 w.shutdown();
             }
         }
+        checkTermination();
     }
 
     @Override
     public List<Runnable> shutdownNow() {
         synchronized (this) {
             _isShutdown = true;
+            _controlLoop.stop();
             List<Runnable> rs = new ArrayList<Runnable>();
             _queue.drainTo(rs);
             for (Worker w : _workers) {
@@ -379,12 +746,60 @@ public class Executor extends AbstractExecutorService {
                     rs.add(r);
                 }
             }
+            checkTermination();
             return rs;
         }
     }
 
     ///
 
+    /**
+     * Wraps the task in an envelope which records its latency, if those metrics are being gathered
+     * and it isn't already in one.
+     */
+    private Runnable instrument(Runnable r) {
+        if (!_measureTaskLatency && !_measureQueueLatency && !_observeQueueLatency) {
+            return r;
+        }
+
+        if (r instanceof Task && ((Task) r).executor() == this) {
+            return r;
+        }
+
+        return new Task<Object>(r, null, false);
+    }
+
+    /**
+     * Offers the task to the queue.  If workers are spinning, a non-blocking offer may not meet a
+     * non-blocking poll, so this waits for a worker to take the task for as long as any are
+     * spinning, and briefly thereafter in case one is about to park.
+     */
+    private boolean offer(Runnable runnable, String lane) {
+        if (lane != null) {
+            return _laneQueue.offer(lane, runnable);
+        }
+
+        return offer(runnable);
+    }
+
+    private boolean offer(Runnable runnable) {
+        if (_spinNanos == 0) {
+            return _queue.offer(runnable);
+        }
+
+        try {
+            do {
+                if (_queue.offer(runnable, HANDOFF_NANOS, TimeUnit.NANOSECONDS)) {
+                    return true;
+                }
+            } while (_spinning.get() > 0);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     private Stats updateStats() {
         return new Stats
             (_metrics,
@@ -401,17 +816,80 @@ public class Executor extends AbstractExecutorService {
     private boolean startWorker() {
         while (true) {
             int numWorkers = _numWorkers.get();
-            if (!_controller.shouldIncrement(numWorkers)) {
+            if (_isShutdown || !_controller.shouldIncrement(numWorkers)) {
                 return false;
             }
             if (_numWorkers.compareAndSet(numWorkers, numWorkers+1)) {
-                _workers.add(new Worker());
+                Worker w = new Worker();
+
+                // register the worker before it starts, so it can't deregister first, and under
+                // the same lock as 'shutdown', so that it either sees the worker or we see it
+                synchronized (this) {
+                    if (_isShutdown) {
+                        _numWorkers.decrementAndGet();
+                        return false;
+                    }
+                    _workers.add(w);
+                }
+                w.start();
                 return true;
             }
         }
     }
 
-    private void startControlLoop(int duration, int iterations) {
+    /**
+     * @return how long the task at the head of the queue has waited, in nanoseconds, or 0 if unknown
+     */
+    private long oldestTaskLatency() {
+        Object r = _queue.peek();
+        if (r instanceof Task) {
+            return System.nanoTime() - ((Task) r)._enqueue;
+        }
+        return 0;
+    }
+
+    /**
+     * Starts new workers if the queue has grown past the burst thresholds.
+     */
+    private void scaleUpBurst() {
+        int step = _burstStep;
+        if (step <= 0) {
+            return;
+        }
+
+        int queueLength = _queue.size();
+        if (queueLength == 0) {
+            return;
+        }
+
+        if (queueLength >= _burstQueueLength || oldestTaskLatency() >= _burstQueueLatency) {
+            synchronized (this) {
+                for (int i = 0; i < Math.min(step, queueLength); i++) {
+                    if (!startWorker()) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the executor as terminated once it's been shut down and every worker has exited.
+     */
+    private void checkTermination() {
+        if (_isShutdown && _workers.isEmpty()) {
+            _terminated.countDown();
+        }
+    }
+
+    /**
+     * Samples the executor's state, and every so often adjusts the number of workers, invoked
+     * once per sample period by the control loop.
+     */
+    private void tick() {
+        if (_isShutdown) {
+            return;
+        }
 
         boolean measureUtilization = _metrics.contains(Stats.Metric.UTILIZATION);
         boolean measureTaskArrivalRate = _metrics.contains(Stats.Metric.TASK_ARRIVAL_RATE);
@@ -419,99 +897,110 @@ public class Executor extends AbstractExecutorService {
         boolean measureTaskRejectionRate = _metrics.contains(Stats.Metric.TASK_REJECTION_RATE);
         boolean measureQueueLength = _metrics.contains(Stats.Metric.QUEUE_LENGTH);
 
-        double samplesPerSecond = 1000.0 / duration;
-        int iteration = 0;
-        long utilizationSample = 0;
+        double samplesPerSecond = _samplesPerSecond;
 
-        try {
-            while (!_isShutdown) {
-                iteration = (iteration + 1) % iterations;
+        LaneQueue laneQueue = _laneQueue;
 
-                long start = System.currentTimeMillis();
+        _iteration = (_iteration + 1) % _iterations;
 
-                // gather stats
-                if (measureQueueLength) {
-                    _queueLengths.get().sample(_queue.size());
-                }
+        // gather stats
+        if (measureQueueLength) {
+            _queueLengths.get().sample(_queue.size());
+        }
 
-                if (measureTaskArrivalRate) {
-                    _taskArrivalRates.get().sample(_incomingTasks.getAndSet(0) * samplesPerSecond);
-                }
+        if (measureTaskArrivalRate) {
+            double arrivalRate = _incomingTasks.sumThenReset() * samplesPerSecond;
+            _taskArrivalRates.get().sample(arrivalRate);
 
-                if (measureTaskRejectionRate) {
-                    _taskRejectionRates.get().sample(_rejectedTasks.getAndSet(0) * samplesPerSecond);
-                }
+            // only spin if each worker can expect a task within twice the spin duration
+            long maxSpinNanos = _maxSpinNanos;
+            if (maxSpinNanos > 0) {
+                double gapNanos = arrivalRate > 0 ? 1e9 * _numWorkers.get() / arrivalRate : Double.MAX_VALUE;
+                _spinNanos = gapNanos <= 2 * maxSpinNanos ? maxSpinNanos : 0;
+            }
+        }
 
-                int tasks = 0;
+        if (measureTaskRejectionRate) {
+            _taskRejectionRates.get().sample(_rejectedTasks.sumThenReset() * samplesPerSecond);
+        }
 
-                int workerCount = 0;
-                double utilizationSum = 0.0;
-                long nextUtilizationSample = 0;
-                if (measureUtilization) {
-                    nextUtilizationSample = System.nanoTime();
-                }
+        long tasks = 0;
 
-                for (Worker w : _workers) {
-                    if (w.isShutdown()) {
-                        continue;
-                    }
+        int workerCount = 0;
+        double utilizationSum = 0.0;
+        long nextUtilizationSample = 0;
+        if (measureUtilization) {
+            nextUtilizationSample = System.nanoTime();
+        }
 
-                    if (measureUtilization) {
-                        workerCount++;
-                        utilizationSum += w.utilization(utilizationSample, nextUtilizationSample);
-                    }
+        for (Worker w : _workers) {
+            if (w.isShutdown()) {
+                continue;
+            }
 
-                    if (measureTaskCompletionRate) {
-                        tasks += w._completed.getAndSet(0);
-                    }
-                }
+            if (measureUtilization) {
+                workerCount++;
+                utilizationSum += w.utilization(_utilizationSample, nextUtilizationSample);
+            }
 
-                if (measureUtilization) {
-                    utilizationSample = nextUtilizationSample;
-                    _utilizations.get().sample(utilizationSum / (double) workerCount);
-                }
+            if (measureTaskCompletionRate) {
+                tasks += w.completed();
+            }
+        }
 
-                if (measureTaskCompletionRate) {
-                    _taskCompletionRates.get().sample(tasks * samplesPerSecond);
-                }
+        if (measureUtilization) {
+            _utilizationSample = nextUtilizationSample;
+            _utilizations.get().sample(utilizationSum / (double) workerCount);
+        }
 
-                // update worker count
-                if (iteration == 0) {
-                    _stats = updateStats();
-                    int adjustment = _controller.adjustment(_stats);
+        if (measureTaskCompletionRate) {
+            _taskCompletionRates.get().sample(tasks * samplesPerSecond);
+        }
 
-                    synchronized (this) {
-                        if (_isShutdown) {
-                            break;
-                        }
+        if (laneQueue != null) {
+            laneQueue.sample(samplesPerSecond);
+        }
 
-                        if (adjustment < 0 && _queue.size() == 0) {
+        // update worker count
+        if (_iteration == 0) {
+            _stats = updateStats();
+            int adjustment;
+            if (laneQueue != null) {
+                _laneStats = laneQueue.updateStats(_stats.getNumWorkers());
+                adjustment = _controller.adjustment(_stats, _laneStats);
+            } else {
+                adjustment = _controller.adjustment(_stats);
+            }
 
-                            // never let the number of workers drop below 1
-                            adjustment = Math.min(-adjustment, _numWorkers.get()-1);
+            synchronized (this) {
+                if (_isShutdown) {
+                    return;
+                }
 
-                            for (Worker w : _workers) {
-                                if (adjustment == 0) break;
-                                if (w.shutdown()) {
-                                    adjustment--;
-                                }
-                            }
-                        } else if (adjustment > 0) {
+                if (adjustment < 0 && (_queue.size() == 0 || _controller.shrinksWithBacklog())) {
 
-                            // create new workers
-                            for (int i = 0; i < adjustment; i++) {
-                                if (!startWorker()) {
-                                    break;
-                                }
-                            }
+                    // never let the number of workers drop below 1, workers which are shut down
+                    // finish their current task first
+                    adjustment = Math.min(-adjustment, _numWorkers.get()-1);
+
+                    for (Worker w : _workers) {
+                        if (adjustment == 0) break;
+                        if (w.shutdown()) {
+                            adjustment--;
                         }
                     }
-                }
+                } else if (adjustment > 0) {
 
-                Thread.sleep(Math.max(0, duration - (System.currentTimeMillis() - start)));
+                    // create new workers
+                    for (int i = 0; i < adjustment; i++) {
+                        if (!startWorker()) {
+                            break;
+                        }
+                    }
+                }
             }
-        } catch (InterruptedException e) {
-
+        } else {
+            scaleUpBurst();
         }
     }
 }
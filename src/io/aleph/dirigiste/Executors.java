@@ -1,7 +1,9 @@
 package io.aleph.dirigiste;
 
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 
 public class Executors {
 
@@ -62,6 +64,348 @@ public class Executors {
         return new Executor(threadFactory(), new SynchronousQueue(false), utilizationController(targetUtilization, maxThreadCount), 1, metrics, 25, 10000, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * An executor where each worker has its own task queue, and idle workers steal from the
+     * others.  Since tasks are always accepted by the queue, the thread count is only adjusted by
+     * the controller, so the executor starts with one thread per processor.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor workStealingExecutor(double targetUtilization, int maxThreadCount) {
+        return workStealingExecutor(targetUtilization, maxThreadCount, EnumSet.of(Stats.Metric.UTILIZATION));
+    }
+
+    /**
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     * @param metrics  the metrics which should be gathered
+     */
+    public static Executor workStealingExecutor(double targetUtilization, int maxThreadCount, EnumSet<Stats.Metric> metrics) {
+        int initialThreadCount = Math.min(maxThreadCount, Runtime.getRuntime().availableProcessors());
+        return new Executor(threadFactory(), new WorkStealingQueue(), utilizationController(targetUtilization, maxThreadCount), initialThreadCount, metrics, 25, 10000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A PID controller which targets a level of mean utilization, with default gains.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor.Controller pidController(double targetUtilization, int maxThreadCount) {
+        return pidController(targetUtilization, maxThreadCount, 1.0, 0.1, 0.2);
+    }
+
+    /**
+     * A PID controller which targets a level of mean utilization.  The error is relative to the
+     * target, and the output is the relative change in the number of threads, which is limited to
+     * halving or doubling the pool each control period.  The integral term isn't accumulated while
+     * the output is saturated, to avoid windup.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     * @param kp  the proportional gain
+     * @param ki  the integral gain
+     * @param kd  the derivative gain
+     */
+    public static Executor.Controller pidController(final double targetUtilization, final int maxThreadCount, double kp, double ki, double kd) {
+        final Pid pid = new Pid(kp, ki, kd);
+
+        return new Executor.Controller() {
+            public boolean shouldIncrement(int numWorkers) {
+                return numWorkers < maxThreadCount;
+            }
+
+            public synchronized int adjustment(Stats stats) {
+                int numWorkers = Math.max(1, stats.getNumWorkers());
+                double error = (stats.getMeanUtilization() - targetUtilization) / targetUtilization;
+
+                double min = Math.max(-0.5, (1.0 - numWorkers) / numWorkers);
+                double max = Math.min(1.0, (double) (maxThreadCount - numWorkers) / numWorkers);
+                double output = pid.update(error, min, Math.max(min, max));
+
+                return (int) Math.round(numWorkers * output);
+            }
+        };
+    }
+
+    /**
+     * An executor which sizes its thread pool for the load forecast one control period ahead,
+     * rather than the load observed in the last period.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor predictiveExecutor(double targetUtilization, int maxThreadCount) {
+        EnumSet<Stats.Metric> metrics = EnumSet.of(Stats.Metric.UTILIZATION, Stats.Metric.TASK_ARRIVAL_RATE, Stats.Metric.TASK_LATENCY, Stats.Metric.QUEUE_LATENCY);
+        return new Executor(threadFactory(), new SynchronousQueue<Runnable>(false), predictiveController(targetUtilization, maxThreadCount), 1, metrics, 25, 10000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A predictive controller with default smoothing factors.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor.Controller predictiveController(double targetUtilization, int maxThreadCount) {
+        return predictiveController(targetUtilization, maxThreadCount, 0.5, 0.3);
+    }
+
+    /**
+     * A controller which forecasts the task arrival rate and service time one control period
+     * ahead, and sizes the thread pool to keep the forecast load at the target utilization, by
+     * Little's law.  The executor must gather the TASK_ARRIVAL_RATE, TASK_LATENCY, and
+     * QUEUE_LATENCY metrics.
+     *
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     * @param alpha  the smoothing factor for the arrival rate and service time, within (0, 1]
+     * @param beta  the smoothing factor for the trend in the arrival rate, within [0, 1]
+     */
+    public static Executor.Controller predictiveController(final double targetUtilization, final int maxThreadCount, double alpha, double beta) {
+        final Forecast forecast = new Forecast(alpha, beta);
+
+        return new Executor.Controller() {
+            public boolean shouldIncrement(int numWorkers) {
+                return numWorkers < maxThreadCount;
+            }
+
+            public synchronized int adjustment(Stats stats) {
+                int numWorkers = stats.getNumWorkers();
+                int target = (int) Math.ceil(forecast.update(stats) / targetUtilization);
+                target = Math.max(1, Math.min(maxThreadCount, target));
+                return target - numWorkers;
+            }
+        };
+    }
+
+    /**
+     * A controller which searches for the thread count that maximizes throughput, via
+     * hill-climbing.  Each control period it moves the thread count, and compares the mean task
+     * completion rate against the previous period.  If throughput improved, it keeps moving in the
+     * same direction with a larger step, and if it worsened it reverses with a smaller one.  If the
+     * change is within noise, it probes back and forth by a single thread.  When there are no
+     * completions at all, it shrinks towards 'minThreadCount'.  Each change in throughput is
+     * credited to the change in thread count actually observed since the last period, which may
+     * differ from what was asked for.
+     *
+     * This requires the TASK_COMPLETION_RATE metric.  Threads are only added on demand up to the
+     * current target, so the executor should use a queue that can hold tasks rather than a
+     * SynchronousQueue.  Since that queue is rarely empty, threads are spun down even while
+     * tasks are queued, once they finish their current task.
+     *
+     * @param minThreadCount  the minimum number of threads
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor.Controller hillClimbingController(final int minThreadCount, final int maxThreadCount) {
+        return new Executor.Controller() {
+
+            // relative changes in throughput smaller than this are treated as noise
+            private static final double NOISE = 0.05;
+
+            private volatile int _target = Math.max(1, minThreadCount);
+            private double _lastThroughput = -1;
+            private int _lastNumWorkers = -1;
+            private int _step = 1;
+
+            public boolean shouldIncrement(int numWorkers) {
+                return numWorkers < _target;
+            }
+
+            public boolean shrinksWithBacklog() {
+                return true;
+            }
+
+            public synchronized int adjustment(Stats stats) {
+                int numWorkers = stats.getNumWorkers();
+                double throughput = stats.getMeanTaskCompletionRate();
+
+                // the move since the last period, which is what the change in throughput reflects
+                int lastDelta = _lastNumWorkers < 0 ? 0 : numWorkers - _lastNumWorkers;
+
+                int delta;
+                if (throughput == 0) {
+                    delta = -1;
+                    _step = 1;
+                } else if (_lastThroughput <= 0 || lastDelta == 0) {
+                    // start exploring, away from whichever bound we're at
+                    delta = numWorkers >= maxThreadCount ? -1 : 1;
+                } else {
+                    double change = (throughput - _lastThroughput) / _lastThroughput;
+                    if (change > NOISE) {
+                        _step = Math.min(_step * 2, Math.max(1, numWorkers / 4));
+                        delta = Integer.signum(lastDelta) * _step;
+                    } else if (change < -NOISE) {
+                        _step = Math.max(1, _step / 2);
+                        delta = -Integer.signum(lastDelta) * _step;
+                    } else {
+                        _step = 1;
+                        delta = -Integer.signum(lastDelta);
+                    }
+                }
+
+                int target = Math.max(Math.max(1, minThreadCount), Math.min(maxThreadCount, numWorkers + delta));
+                _lastThroughput = throughput;
+                _lastNumWorkers = numWorkers;
+                _target = target;
+
+                return target - numWorkers;
+            }
+        };
+    }
+
+    /**
+     * A controller which sizes the pool to keep queue latency under a target.  Threads are added
+     * when the given percentile of queue latency exceeds the target, and removed when it's below
+     * half the target and fewer than half the threads are in use on average.  This requires the
+     * QUEUE_LATENCY and UTILIZATION metrics, and is only useful with a queue that can hold tasks
+     * rather than a SynchronousQueue.
+     *
+     * If 'shedInterval' is positive, tasks are also shed in the style of CoDel: once queue
+     * latency has stayed above the target for a full interval, tasks which have waited longer
+     * than the target are rejected until one is seen which hasn't.  Every task's queue latency is
+     * observed, but only tasks submitted via 'submit' or 'invokeAll' are shed, since their
+     * submitters will see the rejection.
+     *
+     * @param quantile  the queue latency percentile to target, within [0, 1]
+     * @param targetLatency  the target queue latency
+     * @param shedInterval  how long queue latency must stay above target before tasks are shed, or 0 to never shed
+     * @param unit  the time unit for 'targetLatency' and 'shedInterval'
+     * @param maxThreadCount  the maximum number of threads
+     */
+    public static Executor.Controller queueLatencyController(final double quantile, long targetLatency, long shedInterval, TimeUnit unit, final int maxThreadCount) {
+        final long target = unit.toNanos(targetLatency);
+        final long interval = unit.toNanos(shedInterval);
+
+        return new Executor.Controller() {
+
+            // when queue latency first went above target, or 0 if it's below target
+            private final AtomicLong _firstAbove = new AtomicLong(0);
+
+            public boolean shouldIncrement(int numWorkers) {
+                return numWorkers < maxThreadCount;
+            }
+
+            public int adjustment(Stats stats) {
+                int numWorkers = stats.getNumWorkers();
+                double latency = stats.getQueueLatency(quantile);
+
+                if (latency > target) {
+                    double overshoot = Math.min(1.0, latency / target - 1.0);
+                    int n = Math.max(1, (int) Math.ceil(numWorkers * overshoot));
+                    return Math.min(n, maxThreadCount - numWorkers);
+                } else if (latency < target / 2.0 && stats.getMeanUtilization() < 0.5) {
+                    return (int) -Math.ceil(numWorkers / 4.0);
+                } else {
+                    return 0;
+                }
+            }
+
+            public boolean shouldShed(long queueLatency) {
+                if (interval <= 0) {
+                    return false;
+                }
+
+                if (queueLatency < target) {
+                    if (_firstAbove.get() != 0) {
+                        _firstAbove.set(0);
+                    }
+                    return false;
+                }
+
+                long now = System.nanoTime();
+                long firstAbove = _firstAbove.get();
+                if (firstAbove == 0) {
+                    _firstAbove.compareAndSet(0, now);
+                    return false;
+                }
+                return now - firstAbove >= interval;
+            }
+
+            public boolean observesQueueLatency() {
+                return interval > 0;
+            }
+        };
+    }
+
+    /**
+     * An executor whose tasks are divided into weighted lanes, where each lane gets a share of the
+     * threads in proportion to its weight when more than one has pending tasks.  Tasks are
+     * submitted to a lane via 'Executor.lane(name)'.  Since tasks are always accepted by the queue,
+     * the thread count is only adjusted by the controller, so the executor starts with one thread
+     * per processor.
+     *
+     * @param weights  the name and weight of each lane, where the first lane is the default
+     * @param targetUtilization  the target level of utilization, within [0, 1]
+     * @param maxThreadCount  the maximum number of threads
+     * @param metrics  the metrics which should be gathered, which for each lane may include queue length, queue latency, task latency, and task arrival rate
+     */
+    public static Executor laneExecutor(LinkedHashMap<String,Integer> weights, double targetUtilization, int maxThreadCount, EnumSet<Stats.Metric> metrics) {
+        int initialThreadCount = Math.min(maxThreadCount, Runtime.getRuntime().availableProcessors());
+        return new Executor(threadFactory(), new LaneQueue(weights, Integer.MAX_VALUE), utilizationController(targetUtilization, maxThreadCount), initialThreadCount, metrics, 25, 10000, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A scheduler which can run the control loops of many executors and pools, which otherwise
+     * each have their own thread.  Pass it to the Executor, PermitExecutor, or Pool constructors
+     * which take a ScheduledExecutorService.  Each loop keeps its own sample and control periods,
+     * and starts at a random offset within its sample period, so they don't all wake at once.
+     *
+     * Ticks run one after another on each thread, so a slow tick delays the others.  A pool
+     * with a synchronous Generator creates objects on its tick, so pools sharing a scheduler
+     * should use an AsyncGenerator unless their objects are cheap to create.
+     *
+     * @param numThreads  the number of threads which run the control loops
+     */
+    public static ScheduledExecutorService controlScheduler(int numThreads) {
+        final AtomicLong counter = new AtomicLong(0);
+        ScheduledThreadPoolExecutor scheduler =
+            new ScheduledThreadPoolExecutor(numThreads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "dirigiste-controller-" + counter.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        // loops are cancelled when their executor or pool is shut down
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * @return a ThreadFactory which creates virtual threads
+     * @throws UnsupportedOperationException if virtual threads aren't supported by the JVM, which requires JDK 21 or later
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21 or later", e);
+        }
+    }
+
+    /**
+     * An executor which runs each task on its own virtual thread, where the controller adjusts
+     * the number of tasks which may run at once.  Tasks beyond that limit wait for a permit.
+     *
+     * @param targetUtilization  the target fraction of permits in use, within [0, 1]
+     * @param maxPermits  the maximum number of tasks which may run at once
+     */
+    public static PermitExecutor virtualExecutor(double targetUtilization, int maxPermits) {
+        return virtualExecutor(targetUtilization, maxPermits, EnumSet.of(Stats.Metric.UTILIZATION));
+    }
+
+    /**
+     * @param targetUtilization  the target fraction of permits in use, within [0, 1]
+     * @param maxPermits  the maximum number of tasks which may run at once
+     * @param metrics  the metrics which should be gathered
+     */
+    public static PermitExecutor virtualExecutor(double targetUtilization, int maxPermits, EnumSet<Stats.Metric> metrics) {
+        return new PermitExecutor(virtualThreadFactory(), utilizationController(targetUtilization, maxPermits), 1, Integer.MAX_VALUE, metrics, 25, 10000, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * @param targetUtilization  the target level of utilization, within [0, 1]
      * @param maxThreadCount  the maximum number of threads that can be allocated
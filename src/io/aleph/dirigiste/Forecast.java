@@ -0,0 +1,63 @@
+package io.aleph.dirigiste;
+
+/**
+ * A forecast of the concurrency a pool will need one control period ahead, used by the predictive
+ * controllers in Executors and Pools.  The task arrival rate is tracked with Holt's linear
+ * smoothing, so that a steady ramp is extrapolated rather than lagged, and the service time is
+ * tracked with an exponentially weighted moving average.  By Little's law, the forecast
+ * concurrency is the product of the two.
+ */
+class Forecast {
+
+    private final double _alpha;
+    private final double _beta;
+
+    private double _level = 0;
+    private double _trend = 0;
+    private double _serviceTime = 0;
+    private boolean _first = true;
+
+    /**
+     * @param alpha  the smoothing factor for the arrival rate and service time, within (0, 1]
+     * @param beta  the smoothing factor for the trend in the arrival rate, within [0, 1]
+     */
+    Forecast(double alpha, double beta) {
+        if (alpha <= 0 || alpha > 1 || beta < 0 || beta > 1) {
+            throw new IllegalArgumentException("smoothing factors must be within [0, 1]");
+        }
+        _alpha = alpha;
+        _beta = beta;
+    }
+
+    /**
+     * Updates the forecast with the stats from the last control period, which must include the
+     * TASK_ARRIVAL_RATE, TASK_LATENCY, and QUEUE_LATENCY metrics.
+     *
+     * @return the forecast number of tasks in service during the next control period
+     */
+    double update(Stats stats) {
+        double rate = stats.getMeanTaskArrivalRate();
+
+        // the time spent on the queue isn't part of the service time
+        double taskLatency = stats.getMeanTaskLatency();
+        double serviceTime = Math.max(0, taskLatency - stats.getMeanQueueLatency()) / 1e9;
+
+        if (_first) {
+            _level = rate;
+            _trend = 0;
+            _serviceTime = serviceTime;
+            _first = false;
+        } else {
+            double level = (_alpha * rate) + ((1 - _alpha) * (_level + _trend));
+            _trend = (_beta * (level - _level)) + ((1 - _beta) * _trend);
+            _level = level;
+
+            // if no tasks completed, there's nothing new to learn about the service time
+            if (taskLatency > 0) {
+                _serviceTime = (_alpha * serviceTime) + ((1 - _alpha) * _serviceTime);
+            }
+        }
+
+        return Math.max(0, _level + _trend) * _serviceTime;
+    }
+}
@@ -0,0 +1,124 @@
+package io.aleph.dirigiste;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public interface ILeasePool<K,V> extends IPool<K,V> {
+
+    interface Lease<K,V> {
+
+        /**
+         * @return the key the object was acquired under
+         */
+        K getKey();
+
+        /**
+         * @return the pooled object
+         */
+        V getObject();
+
+        /**
+         * @return the value of System.nanoTime() when the object was requested
+         */
+        long getAcquireTime();
+    }
+
+    interface LeaseCallback<K,V> {
+
+        /**
+         * A callback that returns a lease on a pooled object.
+         */
+        void handleLease(Lease<K,V> lease);
+
+        /**
+         * A callback that's invoked instead of 'handleLease' if the request fails, either because
+         * the object created for it could not be generated asynchronously, or because a timed
+         * acquire was abandoned, in which case it's given a TimeoutException.  By default, the
+         * error is passed to the current thread's uncaught exception handler, so that it isn't
+         * lost, but the caller still never learns that its request failed.  Callbacks given to
+         * a timed acquire, or to a pool with an asynchronous generator, should override this.
+         */
+        default void handleError(Throwable e) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+    }
+
+    /**
+     * Acquires a lease on an object from the pool, potentially creating one if none is available.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @param callback  the callback that will be invoked with the lease once it's available
+     */
+    void acquireLease(K key, LeaseCallback<K,V> callback);
+
+    /**
+     * Acquires a lease on an object from the pool, potentially creating one if none is available.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @return the lease, once it's acquired
+     */
+    Lease<K,V> acquireLease(K key) throws InterruptedException;
+
+    /**
+     * Acquires a lease on an object from the pool, potentially creating one if none is available.
+     * If no object is available before the timeout elapses, the request is abandoned and the
+     * callback's 'handleError' is invoked with a TimeoutException.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @param timeout  how long to wait for an object
+     * @param unit  the time unit for 'timeout'
+     * @param callback  the callback that will be invoked with the lease once it's available
+     */
+    void acquireLease(K key, long timeout, TimeUnit unit, LeaseCallback<K,V> callback);
+
+    /**
+     * Acquires a lease on an object from the pool, potentially creating one if none is available.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @param timeout  how long to wait for an object
+     * @param unit  the time unit for 'timeout'
+     * @return the lease, once it's acquired
+     * @throws TimeoutException if no object was available before the timeout elapsed
+     */
+    Lease<K,V> acquireLease(K key, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException;
+
+    /**
+     * Acquires an object from the pool, potentially creating one if none is available.  If no
+     * object is available before the timeout elapses, the request is abandoned and the
+     * callback's 'handleError' is invoked with a TimeoutException.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @param timeout  how long to wait for an object
+     * @param unit  the time unit for 'timeout'
+     * @param callback  the callback that will be invoked with the object once it's available
+     */
+    void acquire(K key, long timeout, TimeUnit unit, AcquireCallback<V> callback);
+
+    /**
+     * Acquires an object from the pool, potentially creating one if none is available.
+     *
+     * @param key  the key of the pooled object being acquired
+     * @param timeout  how long to wait for an object
+     * @param unit  the time unit for 'timeout'
+     * @return the object, once it's acquired
+     * @throws TimeoutException if no object was available before the timeout elapsed
+     */
+    V acquire(K key, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException;
+
+    /**
+     * Releases a leased object back to the pool.  A lease may only be released or disposed once,
+     * later attempts throw an IllegalStateException.
+     *
+     * @param lease  the lease being released
+     */
+    void release(Lease<K,V> lease);
+
+    /**
+     * Disposes of a leased object, removing it from the pool.  A lease may only be released or
+     * disposed once, later attempts throw an IllegalStateException.
+     *
+     * @param lease  the lease being disposed
+     */
+    void dispose(Lease<K,V> lease);
+}
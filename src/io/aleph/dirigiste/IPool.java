@@ -1,6 +1,7 @@
 package io.aleph.dirigiste;
 
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 public interface IPool<K,V> {
 
@@ -19,6 +20,14 @@ public interface IPool<K,V> {
          * @return a map of key onto how many objects should be created (if positive) or disposed (if negative)
          */
         Map<K,Integer> adjustment(Map<K,Stats> stats);
+
+        /**
+         * @param key  the key whose idle objects are being replenished
+         * @return the number of idle objects that should be kept ready under 'key', the pool will use the larger of this and its own minimum
+         */
+        default int minIdle(K key) {
+            return 0;
+        }
     }
 
     interface Generator<K,V> {
@@ -38,12 +47,44 @@ public interface IPool<K,V> {
         void destroy(K key, V val);
     }
 
+    interface AsyncGenerator<K,V> {
+        /**
+         * Begins creating a new instance of the pooled object, which must be
+         * non-null, and non-equal to all other generated objects.  This should not
+         * block the calling thread.
+         *
+         * @param key  the key for which the object is being generated.
+         * @return a stage which will complete with the new object
+         */
+        CompletionStage<V> generate(K key);
+
+        /**
+         * Disposes of the generated value.  Should be idempotent.
+         *
+         * @param val  an object which was previously created via 'generate'.
+         */
+        void destroy(K key, V val);
+    }
+
     interface AcquireCallback<V> {
 
         /**
          * A callback that returns a pooled object.
          */
         void handleObject(V obj);
+
+        /**
+         * A callback that's invoked instead of 'handleObject' if the request fails, either because
+         * the object created for it could not be generated asynchronously, or because a timed
+         * acquire was abandoned, in which case it's given a TimeoutException.  By default, the
+         * error is passed to the current thread's uncaught exception handler, so that it isn't
+         * lost, but the caller still never learns that its request failed.  Callbacks given to
+         * a timed acquire, or to a pool with an asynchronous generator, should override this.
+         */
+        default void handleError(Throwable e) {
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
     }
 
     /**
@@ -0,0 +1,400 @@
+package io.aleph.dirigiste;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A task queue for Executor with a set of named lanes, each with its own weight.  When more than
+ * one lane has pending tasks, workers dequeue from each in proportion to its weight, via smooth
+ * weighted round-robin.  Tasks are submitted to a particular lane via Executor.lane(name), and
+ * anything submitted directly to the executor goes to the first lane.
+ *
+ * Each lane tracks its own queue length, queue latency, task latency, and task arrival rate,
+ * which the executor passes along to its controller.  Latencies are only measured if the executor
+ * gathers them, and are taken from the envelope the executor wraps each task in.
+ */
+public class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    class Lane {
+        final String _name;
+        final int _weight;
+        final ArrayDeque<Runnable> _tasks = new ArrayDeque<Runnable>();
+        final LongAdder _incoming = new LongAdder();
+
+        // the current weight, for smooth weighted round-robin
+        int _current = 0;
+
+        Lane(String name, int weight) {
+            _name = name;
+            _weight = weight;
+        }
+
+        void sampleTaskLatency(long latency) {
+            _taskLatencies.sample(_name, latency);
+        }
+    }
+
+    private final Lane[] _lanes;
+    private final Map<String,Lane> _lanesByName = new HashMap<String,Lane>();
+    private final int _laneCapacity;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    private volatile int _size = 0;
+
+    // set by the executor before it starts, via 'measure'
+    private EnumSet<Stats.Metric> _laneMetrics = EnumSet.noneOf(Stats.Metric.class);
+    private boolean _measureQueueLatency = false;
+    private boolean _measureTaskLatency = false;
+
+    private final Stats.UniformLongReservoirMap<String> _queueLengths = new Stats.UniformLongReservoirMap<String>();
+    private final Stats.UniformLongReservoirMap<String> _queueLatencies = new Stats.UniformLongReservoirMap<String>();
+    private final Stats.UniformLongReservoirMap<String> _taskLatencies = new Stats.UniformLongReservoirMap<String>();
+    private final Stats.UniformDoubleReservoirMap<String> _taskArrivalRates = new Stats.UniformDoubleReservoirMap<String>();
+
+    /**
+     * @param weights  the name and weight of each lane, where the first lane is the default
+     * @param laneCapacity  the maximum number of tasks which can be enqueued in each lane
+     */
+    public LaneQueue(LinkedHashMap<String,Integer> weights, int laneCapacity) {
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("must have at least one lane");
+        }
+
+        _lanes = new Lane[weights.size()];
+        int i = 0;
+        for (Map.Entry<String,Integer> e : weights.entrySet()) {
+            if (e.getValue() <= 0) {
+                throw new IllegalArgumentException("lane weights must be positive");
+            }
+            Lane lane = new Lane(e.getKey(), e.getValue());
+            _lanes[i++] = lane;
+            _lanesByName.put(lane._name, lane);
+        }
+        _laneCapacity = laneCapacity;
+    }
+
+    /**
+     * @return the names of the lanes, in order
+     */
+    public List<String> getLanes() {
+        List<String> names = new ArrayList<String>();
+        for (Lane lane : _lanes) {
+            names.add(lane._name);
+        }
+        return names;
+    }
+
+    public boolean hasLane(String name) {
+        return _lanesByName.containsKey(name);
+    }
+
+    private Lane lane(String name) {
+        Lane lane = _lanesByName.get(name);
+        if (lane == null) {
+            throw new IllegalArgumentException("no such lane: " + name);
+        }
+        return lane;
+    }
+
+    /**
+     * Sets which of the per-lane metrics are gathered, called by the executor which owns the
+     * queue.
+     */
+    void measure(EnumSet<Stats.Metric> metrics) {
+        _laneMetrics = EnumSet.copyOf(metrics);
+        _laneMetrics.retainAll(EnumSet.of(Stats.Metric.QUEUE_LENGTH, Stats.Metric.QUEUE_LATENCY, Stats.Metric.TASK_LATENCY, Stats.Metric.TASK_ARRIVAL_RATE));
+        _measureQueueLatency = metrics.contains(Stats.Metric.QUEUE_LATENCY);
+        _measureTaskLatency = metrics.contains(Stats.Metric.TASK_LATENCY);
+    }
+
+    /**
+     * Picks the next task, via smooth weighted round-robin over the non-empty lanes.  Must be
+     * called while holding the lock.
+     */
+    private Runnable dequeue() {
+        if (_size == 0) {
+            return null;
+        }
+
+        Lane best = null;
+        int total = 0;
+        for (Lane lane : _lanes) {
+            if (lane._tasks.isEmpty()) {
+                continue;
+            }
+            lane._current += lane._weight;
+            total += lane._weight;
+            if (best == null || lane._current > best._current) {
+                best = lane;
+            }
+        }
+        best._current -= total;
+
+        Runnable r = best._tasks.poll();
+        _size = _size - 1;
+
+        // capacity is per lane, so a single wakeup may go to a put whose lane is still full
+        _notFull.signalAll();
+        if (_measureQueueLatency && r instanceof Executor.Task) {
+            _queueLatencies.sample(best._name, System.nanoTime() - ((Executor.Task) r)._enqueue);
+        }
+        return r;
+    }
+
+    /**
+     * Must be called while holding the lock.
+     */
+    private boolean enqueue(Lane lane, Runnable r) {
+        if (lane._tasks.size() >= _laneCapacity) {
+            return false;
+        }
+        if (_measureTaskLatency && r instanceof Executor.Task) {
+            ((Executor.Task) r)._lane = lane;
+        }
+        lane._tasks.add(r);
+        lane._incoming.increment();
+        _size = _size + 1;
+        _notEmpty.signal();
+        return true;
+    }
+
+    /**
+     * Samples the length and arrival rate of each lane, called by the executor's control loop.
+     */
+    void sample(double samplesPerSecond) {
+        _lock.lock();
+        try {
+            for (Lane lane : _lanes) {
+                _queueLengths.sample(lane._name, lane._tasks.size());
+            }
+        } finally {
+            _lock.unlock();
+        }
+
+        for (Lane lane : _lanes) {
+            _taskArrivalRates.sample(lane._name, lane._incoming.sumThenReset() * samplesPerSecond);
+        }
+    }
+
+    /**
+     * Returns the per-lane statistics gathered since the last call, called by the executor's
+     * control loop.
+     */
+    Map<String,Stats> updateStats(int numWorkers) {
+        EnumSet<Stats.Metric> laneMetrics = _laneMetrics;
+
+        Map<String,long[]> queueLengths = _queueLengths.toMap();
+        Map<String,long[]> queueLatencies = _queueLatencies.toMap();
+        Map<String,long[]> taskLatencies = _taskLatencies.toMap();
+        Map<String,double[]> taskArrivalRates = _taskArrivalRates.toMap();
+
+        Map<String,Stats> stats = new LinkedHashMap<String,Stats>();
+        for (Lane lane : _lanes) {
+            stats.put(lane._name,
+                      new Stats(laneMetrics,
+                                numWorkers,
+                                new double[] {},
+                                orEmpty(taskArrivalRates.get(lane._name)),
+                                new double[] {},
+                                new double[] {},
+                                orEmpty(queueLengths.get(lane._name)),
+                                orEmpty(queueLatencies.get(lane._name)),
+                                orEmpty(taskLatencies.get(lane._name))));
+        }
+        return stats;
+    }
+
+    private static long[] orEmpty(long[] vals) {
+        return vals == null ? new long[] {} : vals;
+    }
+
+    private static double[] orEmpty(double[] vals) {
+        return vals == null ? new double[] {} : vals;
+    }
+
+    ///
+
+    /**
+     * Enqueues a task in the named lane, returning false if the lane is full.
+     */
+    public boolean offer(String lane, Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        Lane l = lane(lane);
+
+        _lock.lock();
+        try {
+            return enqueue(l, r);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Enqueues a task in the named lane, waiting for space if the lane is full.
+     */
+    public void put(String lane, Runnable r) throws InterruptedException {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        Lane l = lane(lane);
+
+        _lock.lockInterruptibly();
+        try {
+            while (!enqueue(l, r)) {
+                _notFull.await();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        return offer(_lanes[0]._name, r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            while (!enqueue(_lanes[0], r)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = _notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable r) throws InterruptedException {
+        put(_lanes[0]._name, r);
+    }
+
+    @Override
+    public Runnable poll() {
+        _lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        try {
+            Runnable r = dequeue();
+            while (r == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = _notEmpty.awaitNanos(nanos);
+                r = dequeue();
+            }
+            return r;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            Runnable r = dequeue();
+            while (r == null) {
+                _notEmpty.await();
+                r = dequeue();
+            }
+            return r;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        _lock.lock();
+        try {
+            for (Lane lane : _lanes) {
+                Runnable r = lane._tasks.peek();
+                if (r != null) {
+                    return r;
+                }
+            }
+            return null;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        long capacity = (long) _laneCapacity * _lanes.length;
+        return (int) Math.min(Integer.MAX_VALUE, capacity - _size);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        _lock.lock();
+        try {
+            int n = 0;
+            for (Lane lane : _lanes) {
+                while (n < maxElements && !lane._tasks.isEmpty()) {
+                    c.add(lane._tasks.poll());
+                    _size = _size - 1;
+                    n++;
+                }
+            }
+            _notFull.signalAll();
+            return n;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the enqueued tasks, which doesn't support removal
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        _lock.lock();
+        try {
+            List<Runnable> tasks = new ArrayList<Runnable>(_size);
+            for (Lane lane : _lanes) {
+                tasks.addAll(lane._tasks);
+            }
+            return Collections.unmodifiableList(tasks).iterator();
+        } finally {
+            _lock.unlock();
+        }
+    }
+}
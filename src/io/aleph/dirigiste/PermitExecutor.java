@@ -0,0 +1,451 @@
+package io.aleph.dirigiste;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.EnumSet;
+
+/**
+ * An executor which runs each task on a new thread, and bounds concurrency with a limit on the
+ * number of tasks which can run at once.  This is meant to be used with virtual threads, via
+ * Executors.virtualExecutor, but will work with any ThreadFactory.
+ *
+ * The Executor.Controller adjusts the permit limit rather than a number of threads, and the
+ * gathered Stats describe permits rather than workers: 'getNumWorkers' is the permit limit,
+ * utilization is the fraction of permits in use, and queue latency is the time spent waiting
+ * for a permit.
+ */
+public class PermitExecutor extends AbstractExecutorService {
+
+    private static AtomicInteger _numExecutors = new AtomicInteger(0);
+
+    private final ThreadFactory _threadFactory;
+    private final Executor.Controller _controller;
+    private final int _maxQueueSize;
+
+    // the tasks which are waiting for a permit
+    private final ConcurrentLinkedQueue<Runnable> _pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger _numPending = new AtomicInteger(0);
+
+    private final AtomicInteger _permits = new AtomicInteger(0);
+    private final AtomicInteger _inUse = new AtomicInteger(0);
+    private final ConcurrentHashMap<Thread,Runnable> _running = new ConcurrentHashMap<Thread,Runnable>();
+
+    private final AtomicInteger _incomingTasks = new AtomicInteger(0);
+    private final AtomicInteger _completedTasks = new AtomicInteger(0);
+    private final AtomicInteger _rejectedTasks = new AtomicInteger(0);
+
+    private final EnumSet<Stats.Metric> _metrics;
+    private final boolean _measureQueueLatency;
+    private final boolean _measureTaskLatency;
+
+    private volatile boolean _isShutdown = false;
+    private final CountDownLatch _terminated = new CountDownLatch(1);
+
+    private final AtomicReference<Stats.UniformLongReservoir> _queueLatencies =
+        new AtomicReference<Stats.UniformLongReservoir>(new Stats.UniformLongReservoir());
+
+    private final AtomicReference<Stats.UniformLongReservoir> _taskLatencies =
+        new AtomicReference<Stats.UniformLongReservoir>(new Stats.UniformLongReservoir());
+
+    private final AtomicReference<Stats.UniformLongReservoir> _queueLengths =
+        new AtomicReference<Stats.UniformLongReservoir>(new Stats.UniformLongReservoir());
+
+    private final AtomicReference<Stats.UniformDoubleReservoir> _utilizations =
+        new AtomicReference<Stats.UniformDoubleReservoir>(new Stats.UniformDoubleReservoir());
+
+    private final AtomicReference<Stats.UniformDoubleReservoir> _taskArrivalRates =
+        new AtomicReference<Stats.UniformDoubleReservoir>(new Stats.UniformDoubleReservoir());
+
+    private final AtomicReference<Stats.UniformDoubleReservoir> _taskCompletionRates =
+        new AtomicReference<Stats.UniformDoubleReservoir>(new Stats.UniformDoubleReservoir());
+
+    private final AtomicReference<Stats.UniformDoubleReservoir> _taskRejectionRates =
+        new AtomicReference<Stats.UniformDoubleReservoir>(new Stats.UniformDoubleReservoir());
+
+    private volatile Stats _stats = Stats.EMPTY;
+
+    // the control loop's state, only touched by 'tick'
+    private final int _iterations;
+    private final double _samplesPerSecond;
+    private int _iteration = 0;
+
+    private final ControlLoop _controlLoop;
+
+    // a task, and when it was submitted
+    class Task implements Runnable {
+        final Runnable _runnable;
+        final long _enqueue;
+
+        Task(Runnable runnable) {
+            _runnable = runnable;
+            _enqueue = _measureQueueLatency || _measureTaskLatency ? System.nanoTime() : 0;
+        }
+
+        public void run() {
+            if (_measureQueueLatency) {
+                _queueLatencies.get().sample(System.nanoTime() - _enqueue);
+            }
+
+            try {
+                _runnable.run();
+            } finally {
+                if (_measureTaskLatency) {
+                    _taskLatencies.get().sample(System.nanoTime() - _enqueue);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param threadFactory the ThreadFactory used to create a thread for each task
+     * @param controller  the Controller object that updates the permit limit
+     * @param initialPermits  the number of tasks which can initially run at once
+     * @param maxQueueSize  the maximum number of tasks which can wait for a permit
+     * @param metrics  the metrics that will be collected and delivered to the controller
+     * @param samplePeriod  the period at which the executor's state will be sampled
+     * @param controlPeriod  the period at which the controller will be invoked with the gathered statistics
+     * @param unit  the time unit for the #samplePeriod and #controlPeriod
+     */
+    public PermitExecutor(ThreadFactory threadFactory, Executor.Controller controller, int initialPermits, int maxQueueSize, EnumSet<Stats.Metric> metrics, long samplePeriod, long controlPeriod, TimeUnit unit) {
+        this(threadFactory, controller, initialPermits, maxQueueSize, metrics, samplePeriod, controlPeriod, unit, null);
+    }
+
+    /**
+     * An executor whose control loop runs on 'scheduler' rather than its own thread.  See
+     * Executors.controlScheduler().
+     *
+     * @param threadFactory the ThreadFactory used to create a thread for each task
+     * @param controller  the Controller object that updates the permit limit
+     * @param initialPermits  the number of tasks which can initially run at once
+     * @param maxQueueSize  the maximum number of tasks which can wait for a permit
+     * @param metrics  the metrics that will be collected and delivered to the controller
+     * @param samplePeriod  the period at which the executor's state will be sampled
+     * @param controlPeriod  the period at which the controller will be invoked with the gathered statistics
+     * @param unit  the time unit for the #samplePeriod and #controlPeriod
+     * @param scheduler  the scheduler which runs the control loop, or null if it should have its own thread
+     */
+    public PermitExecutor(ThreadFactory threadFactory, Executor.Controller controller, int initialPermits, int maxQueueSize, EnumSet<Stats.Metric> metrics, long samplePeriod, long controlPeriod, TimeUnit unit, ScheduledExecutorService scheduler) {
+
+        _threadFactory = threadFactory;
+        _controller = controller;
+        _maxQueueSize = maxQueueSize;
+        _metrics = metrics;
+        _permits.set(Math.max(1, initialPermits));
+
+        _measureQueueLatency = _metrics.contains(Stats.Metric.QUEUE_LATENCY);
+        _measureTaskLatency = _metrics.contains(Stats.Metric.TASK_LATENCY);
+
+        int duration = (int) unit.toMillis(samplePeriod);
+        _iterations = (int) (controlPeriod / samplePeriod);
+        _samplesPerSecond = 1000.0 / duration;
+
+        _controlLoop =
+            ControlLoop.start(new Runnable() {
+                    public void run() {
+                        tick();
+                    }
+                },
+                duration,
+                "dirigiste-permit-executor-controller-" + _numExecutors.getAndIncrement(),
+                scheduler);
+    }
+
+    /**
+     * @return the metrics being gathered by the executor
+     */
+    public EnumSet<Stats.Metric> getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * @return the current limit on the number of tasks which can run at once
+     */
+    public int getPermits() {
+        return _permits.get();
+    }
+
+    /**
+     * @return the last aggregate statistics given to the control loop.
+     */
+    public Stats getLastStats() {
+        return _stats;
+    }
+
+    /**
+     * @return the aggregate statistics for the executor since the last control loop update.
+     */
+    public Stats getStats() {
+        return new Stats
+            (_metrics,
+             _permits.get(),
+             _utilizations.get().toArray(),
+             _taskArrivalRates.get().toArray(),
+             _taskCompletionRates.get().toArray(),
+             _taskRejectionRates.get().toArray(),
+             _queueLengths.get().toArray(),
+             _queueLatencies.get().toArray(),
+             _taskLatencies.get().toArray());
+    }
+
+    @Override
+    public void execute(Runnable runnable) throws NullPointerException, RejectedExecutionException {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+
+        if (_isShutdown) {
+            throw new RejectedExecutionException("Executor is shutdown!");
+        }
+
+        _incomingTasks.incrementAndGet();
+
+        Task task = new Task(runnable);
+
+        // if other tasks are waiting for a permit, get in line behind them
+        if (_numPending.get() == 0 && (acquirePermit() || addPermit())) {
+            start(task);
+            return;
+        }
+
+        // wait for a permit, if there's room
+        while (true) {
+            int n = _numPending.get();
+            if (n >= _maxQueueSize) {
+                _rejectedTasks.incrementAndGet();
+                throw new RejectedExecutionException();
+            }
+            if (_numPending.compareAndSet(n, n+1)) {
+                break;
+            }
+        }
+        _pending.offer(task);
+
+        // a permit may be free, or have been released while we were enqueueing
+        if (acquirePermit() || addPermit()) {
+            startPending();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return _isShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return _terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return _terminated.await(timeout, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        _isShutdown = true;
+        _controlLoop.stop();
+        checkTermination();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        _isShutdown = true;
+        _controlLoop.stop();
+
+        List<Runnable> rs = new ArrayList<Runnable>();
+        Runnable r = _pending.poll();
+        while (r != null) {
+            _numPending.decrementAndGet();
+            rs.add(((Task) r)._runnable);
+            r = _pending.poll();
+        }
+
+        for (java.util.Map.Entry<Thread,Runnable> e : _running.entrySet()) {
+            e.getKey().interrupt();
+            rs.add(e.getValue());
+        }
+
+        checkTermination();
+        return rs;
+    }
+
+    ///
+
+    private boolean acquirePermit() {
+        while (true) {
+            int inUse = _inUse.get();
+            if (inUse >= _permits.get()) {
+                return false;
+            }
+            if (_inUse.compareAndSet(inUse, inUse+1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Asks the controller for an additional permit, and claims it if granted.
+     */
+    private boolean addPermit() {
+        while (true) {
+            int permits = _permits.get();
+            if (!_controller.shouldIncrement(permits)) {
+                return false;
+            }
+            if (_permits.compareAndSet(permits, permits+1)) {
+                if (acquirePermit()) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private void releasePermit() {
+        _inUse.decrementAndGet();
+
+        // hand the permit to a waiting task, if there is one
+        while (_numPending.get() > 0 && acquirePermit()) {
+            if (!startPending()) {
+                break;
+            }
+        }
+
+        checkTermination();
+    }
+
+    /**
+     * Starts a pending task with a permit that's already been acquired, or gives the permit
+     * back if there are no pending tasks.
+     */
+    private boolean startPending() {
+        Runnable r = _pending.poll();
+        if (r == null) {
+            _inUse.decrementAndGet();
+            return false;
+        }
+        _numPending.decrementAndGet();
+        start((Task) r);
+        return true;
+    }
+
+    private void start(final Task task) {
+        Thread t = _threadFactory.newThread(new Runnable() {
+                public void run() {
+                    Thread curr = Thread.currentThread();
+                    _running.put(curr, task._runnable);
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+
+                    } finally {
+                        _running.remove(curr);
+                        _completedTasks.incrementAndGet();
+                        releasePermit();
+                    }
+                }
+            });
+
+        try {
+            t.start();
+        } catch (Throwable e) {
+            _inUse.decrementAndGet();
+            _rejectedTasks.incrementAndGet();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    private void checkTermination() {
+        if (_isShutdown && _inUse.get() == 0 && _numPending.get() == 0) {
+            _terminated.countDown();
+        }
+    }
+
+    private Stats updateStats() {
+        return new Stats
+            (_metrics,
+             _permits.get(),
+             _utilizations.getAndSet(new Stats.UniformDoubleReservoir()).toArray(),
+             _taskArrivalRates.getAndSet(new Stats.UniformDoubleReservoir()).toArray(),
+             _taskCompletionRates.getAndSet(new Stats.UniformDoubleReservoir()).toArray(),
+             _taskRejectionRates.getAndSet(new Stats.UniformDoubleReservoir()).toArray(),
+             _queueLengths.getAndSet(new Stats.UniformLongReservoir()).toArray(),
+             _queueLatencies.getAndSet(new Stats.UniformLongReservoir()).toArray(),
+             _taskLatencies.getAndSet(new Stats.UniformLongReservoir()).toArray());
+    }
+
+    /**
+     * Samples the executor's state, and every so often adjusts the number of permits, invoked
+     * once per sample period by the control loop.
+     */
+    private void tick() {
+        if (_isShutdown) {
+            return;
+        }
+
+        boolean measureUtilization = _metrics.contains(Stats.Metric.UTILIZATION);
+        boolean measureTaskArrivalRate = _metrics.contains(Stats.Metric.TASK_ARRIVAL_RATE);
+        boolean measureTaskCompletionRate = _metrics.contains(Stats.Metric.TASK_COMPLETION_RATE);
+        boolean measureTaskRejectionRate = _metrics.contains(Stats.Metric.TASK_REJECTION_RATE);
+        boolean measureQueueLength = _metrics.contains(Stats.Metric.QUEUE_LENGTH);
+
+        double samplesPerSecond = _samplesPerSecond;
+
+        _iteration = (_iteration + 1) % _iterations;
+
+        // gather stats
+        if (measureQueueLength) {
+            _queueLengths.get().sample(_numPending.get());
+        }
+
+        if (measureTaskArrivalRate) {
+            _taskArrivalRates.get().sample(_incomingTasks.getAndSet(0) * samplesPerSecond);
+        }
+
+        if (measureTaskCompletionRate) {
+            _taskCompletionRates.get().sample(_completedTasks.getAndSet(0) * samplesPerSecond);
+        }
+
+        if (measureTaskRejectionRate) {
+            _taskRejectionRates.get().sample(_rejectedTasks.getAndSet(0) * samplesPerSecond);
+        }
+
+        if (measureUtilization) {
+            _utilizations.get().sample(Math.min(1.0, (double) _inUse.get() / (double) _permits.get()));
+        }
+
+        // update the permit limit
+        if (_iteration == 0) {
+            _stats = updateStats();
+            int adjustment = _controller.adjustment(_stats);
+
+            if (adjustment < 0 && (_numPending.get() == 0 || _controller.shrinksWithBacklog())) {
+
+                // never let the number of permits drop below 1, running tasks
+                // over the new limit are allowed to complete
+                while (true) {
+                    int permits = _permits.get();
+                    if (_permits.compareAndSet(permits, Math.max(1, permits + adjustment))) {
+                        break;
+                    }
+                }
+            } else if (adjustment > 0) {
+                for (int i = 0; i < adjustment; i++) {
+                    int permits = _permits.get();
+                    if (!_controller.shouldIncrement(permits) || !_permits.compareAndSet(permits, permits+1)) {
+                        break;
+                    }
+                }
+
+                // let any waiting tasks use the new permits
+                while (_numPending.get() > 0 && acquirePermit()) {
+                    if (!startPending()) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
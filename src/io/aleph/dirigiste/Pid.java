@@ -0,0 +1,55 @@
+package io.aleph.dirigiste;
+
+/**
+ * The state of a PID loop, used by the PID controllers in Executors and Pools.  Errors are
+ * relative to the target, and the output is the relative change in size, so the same gains work
+ * regardless of the size of the pool.
+ */
+class Pid {
+
+    private final double _kp;
+    private final double _ki;
+    private final double _kd;
+
+    private double _integral = 0;
+    private double _lastError = 0;
+    private boolean _first = true;
+
+    Pid(double kp, double ki, double kd) {
+        _kp = kp;
+        _ki = ki;
+        _kd = kd;
+    }
+
+    /**
+     * @param error  the relative error, which is positive if the pool should grow
+     * @param min  the smallest allowed output
+     * @param max  the largest allowed output
+     * @return the relative change in size, within [min, max]
+     */
+    double update(double error, double min, double max) {
+        double derivative = _first ? 0 : error - _lastError;
+        _lastError = error;
+        _first = false;
+
+        double integral = _integral + error;
+        double output = (_kp * error) + (_ki * integral) + (_kd * derivative);
+
+        // anti-windup: only accumulate error if it doesn't push further into saturation
+        if (output > max) {
+            output = max;
+            if (error < 0) {
+                _integral = integral;
+            }
+        } else if (output < min) {
+            output = min;
+            if (error > 0) {
+                _integral = integral;
+            }
+        } else {
+            _integral = integral;
+        }
+
+        return output;
+    }
+}
@@ -3,49 +3,523 @@ package io.aleph.dirigiste;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
-public class Pool<K,V> implements IPool<K,V> {
+public class Pool<K,V> implements ILeasePool<K,V> {
+
+    // a pooled object, and where it is in its lifecycle
+    class Entry {
+
+        // the lifecycle state, plus the QUEUED bit while the entry is on its queue's idle list
+        volatile int _state = IDLE;
+
+        // the current lease, if the object was acquired via acquire(key)
+        volatile Request _handle;
+
+        final Queue _queue;
+        final V _obj;
+        final long _created;
+        volatile long _lastUsed;
+
+        // only touched by the control loop, while the entry is on the wheel
+        Entry _next;
+        long _rounds;
+
+        Entry(Queue queue, V obj) {
+            _queue = queue;
+            _obj = obj;
+            _created = System.nanoTime();
+            _lastUsed = _created;
+        }
+
+        /**
+         * Moves from one lifecycle state to another, leaving the QUEUED bit as-is.  Returns the
+         * prior state, or -1 if the entry wasn't in state 'from'.
+         */
+        private int transition(int from, int to) {
+            while (true) {
+                int s = _state;
+                if ((s & LIFECYCLE) != from) {
+                    return -1;
+                }
+                if (STATE.compareAndSet(this, s, (s & QUEUED) | to)) {
+                    return s;
+                }
+            }
+        }
+
+        /**
+         * Moves an idle object to leased, returning its prior state, or -1 if it's in use or condemned.
+         */
+        int lease() {
+            return transition(IDLE, LEASED);
+        }
+
+        /**
+         * Moves a leased object back to idle, returning its prior state, or -1 if it's been condemned.
+         */
+        int unlease() {
+            return transition(LEASED, IDLE);
+        }
+
+        /**
+         * Marks an idle object for destruction, returns false if it's in use or already condemned.
+         */
+        boolean expire() {
+            return transition(IDLE, CONDEMNED) != -1;
+        }
+
+        /**
+         * Claims a condemned object for destruction, returns false if it's already been claimed.
+         */
+        boolean reap() {
+            return transition(CONDEMNED, DESTROYED) != -1;
+        }
+
+        /**
+         * Marks the object for destruction, returning its prior state.  A leased object must be
+         * destroyed by the caller, an idle one will be reaped by whoever next finds it on the queue.
+         */
+        int condemn() {
+            while (true) {
+                int s = _state;
+                int lifecycle = s & LIFECYCLE;
+                if (lifecycle >= CONDEMNED) {
+                    return s;
+                }
+                if (STATE.compareAndSet(this, s, (s & QUEUED) | (lifecycle == LEASED ? DESTROYED : CONDEMNED))) {
+                    return s;
+                }
+            }
+        }
+
+        /**
+         * Takes the entry off its queue's idle list, leasing it if it's idle.  Returns its prior state.
+         */
+        int dequeue() {
+            while (true) {
+                int s = _state;
+                int lifecycle = s & LIFECYCLE;
+                if (STATE.compareAndSet(this, s, lifecycle == IDLE ? LEASED : lifecycle)) {
+                    return s;
+                }
+            }
+        }
+
+        /**
+         * Moves a leased object onto its queue's idle list, returns false if it's been condemned.
+         */
+        boolean enqueue() {
+            return STATE.compareAndSet(this, LEASED, IDLE | QUEUED);
+        }
+
+        boolean isIdle() {
+            return (_state & LIFECYCLE) == IDLE;
+        }
+
+        boolean isCondemned() {
+            return (_state & LIFECYCLE) >= CONDEMNED;
+        }
+    }
+
+    // a hashed timing wheel of every live object, which is only touched by the control loop
+    class Wheel {
+
+        private final Entry[] _slots;
+        private final long _tick;
+        private long _time;
+        private int _cursor = 0;
+
+        @SuppressWarnings("unchecked")
+        Wheel(int numSlots, long tick) {
+            _slots = (Entry[]) new Pool<?,?>.Entry[numSlots];
+            _tick = tick;
+            _time = System.nanoTime();
+        }
+
+        /**
+         * @return the span of a single revolution of the wheel, in nanoseconds
+         */
+        long span() {
+            return _tick * _slots.length;
+        }
+
+        void schedule(Entry e, long deadline) {
+            long ticks = Math.max(1, (deadline - _time + _tick - 1) / _tick);
+            e._rounds = (ticks - 1) / _slots.length;
+            int idx = (int) ((_cursor + ticks) % _slots.length);
+            e._next = _slots[idx];
+            _slots[idx] = e;
+        }
+
+        /**
+         * Advances the wheel up to 'now', invoking 'check' on each entry whose deadline may have
+         * passed.  Entries are dropped from the wheel unless 'check' reschedules them.
+         */
+        void advance(long now) {
+            for (int i = 0; i < _slots.length && _time + _tick <= now; i++) {
+                _time += _tick;
+                _cursor = (_cursor + 1) % _slots.length;
+
+                Entry e = _slots[_cursor];
+                _slots[_cursor] = null;
+                while (e != null) {
+                    Entry next = e._next;
+                    e._next = null;
+                    if (e._rounds > 0) {
+                        e._rounds--;
+                        e._next = _slots[_cursor];
+                        _slots[_cursor] = e;
+                    } else {
+                        check(e, now);
+                    }
+                    e = next;
+                }
+            }
+
+            // if we've fallen more than a full revolution behind, skip ahead
+            if (_time + _tick <= now) {
+                _time = now;
+            }
+        }
+    }
+
+    // a pending request for an object
+    abstract class Waiter implements AcquireCallback<Entry> {
+
+        volatile int _claimed = 0;
+
+        /**
+         * Claims the waiter, either to hand it an object or to abandon it.  Only the first claim
+         * succeeds, so an abandoned waiter will never be handed an object.
+         */
+        boolean claim() {
+            return _claimed == 0 && CLAIMED.compareAndSet(this, 0, 1);
+        }
+
+        boolean isClaimed() {
+            return _claimed != 0;
+        }
+    }
+
+    // a request via one of the acquire methods, which once satisfied is also the lease
+    class Request extends Waiter implements Lease<K,V> {
+
+        volatile int _closed = 0;
+
+        final Queue _queue;
+        final long _start;
+        final long _deadline;
+
+        // if null, the request is satisfied by waking up '_thread'
+        final LeaseCallback<K,V> _callback;
+        final Thread _thread;
+
+        volatile Entry _entry;
+        volatile Throwable _error;
+
+        // whether the request is in '_deadlines'
+        volatile boolean _scheduled = false;
+
+        Request(Queue queue, long start, long deadline, LeaseCallback<K,V> callback) {
+            _queue = queue;
+            _start = start;
+            _deadline = deadline;
+            _callback = callback;
+            _thread = callback == null ? Thread.currentThread() : null;
+        }
+
+        public void handleObject(Entry e) {
+
+            // do all the latency bookkeeping
+            long acquire = System.nanoTime();
+            _queueLatencies.sample(_queue._key, acquire - _start);
+
+            _entry = e;
+            if (_callback != null) {
+                _callback.handleLease(this);
+            } else {
+                LockSupport.unpark(_thread);
+            }
+        }
+
+        public void handleError(Throwable e) {
+            if (_callback != null) {
+                _callback.handleError(e);
+            } else {
+                _error = e;
+                LockSupport.unpark(_thread);
+            }
+        }
+
+        @Override
+        boolean claim() {
+            if (super.claim()) {
+                if (_scheduled) {
+                    _staleDeadlines.incrementAndGet();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        boolean isDone() {
+            return _entry != null || _error != null;
+        }
+
+        public K getKey() {
+            return _queue._key;
+        }
+
+        public V getObject() {
+            return _entry._obj;
+        }
+
+        public long getAcquireTime() {
+            return _start;
+        }
+
+        /**
+         * @return true the first time it's called, false thereafter
+         */
+        boolean close() {
+            return _closed == 0 && CLOSED.compareAndSet(this, 0, 1);
+        }
+    }
+
+    // a bounded, array-backed double-ended queue, which is only accessed while holding the lock of
+    // the queue that owns it
+    static class Ring<T> {
+
+        private final int _capacity;
+        private Object[] _elements;
+        private int _head = 0;
+        private volatile int _size = 0;
+
+        Ring(int capacity) {
+            _capacity = Math.max(1, capacity);
+            _elements = new Object[Math.min(16, _capacity)];
+        }
+
+        int size() {
+            return _size;
+        }
+
+        /**
+         * Makes room for one more element, returns false if the ring is at capacity.
+         */
+        private boolean reserve() {
+            int len = _elements.length;
+            if (_size < len) {
+                return true;
+            } else if (len >= _capacity) {
+                return false;
+            }
+
+            Object[] elements = new Object[(int) Math.min(_capacity, len * 2L)];
+            for (int i = 0; i < _size; i++) {
+                elements[i] = _elements[(_head + i) % len];
+            }
+            _elements = elements;
+            _head = 0;
+            return true;
+        }
+
+        boolean offerFirst(T x) {
+            if (!reserve()) {
+                return false;
+            }
+            _head = (_head == 0 ? _elements.length : _head) - 1;
+            _elements[_head] = x;
+            _size = _size + 1;
+            return true;
+        }
+
+        boolean offerLast(T x) {
+            if (!reserve()) {
+                return false;
+            }
+            _elements[(_head + _size) % _elements.length] = x;
+            _size = _size + 1;
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T elementAt(int idx) {
+            return (T) _elements[idx];
+        }
+
+        T peekFirst() {
+            return _size == 0 ? null : elementAt(_head);
+        }
+
+        T pollFirst() {
+            if (_size == 0) {
+                return null;
+            }
+            T x = elementAt(_head);
+            _elements[_head] = null;
+            _head = (_head + 1) % _elements.length;
+            _size = _size - 1;
+            return x;
+        }
+
+        T pollLast() {
+            if (_size == 0) {
+                return null;
+            }
+            int idx = (_head + _size - 1) % _elements.length;
+            T x = elementAt(idx);
+            _elements[idx] = null;
+            _size = _size - 1;
+            return x;
+        }
+    }
 
     // pooled object queue
     class Queue {
 
         private volatile boolean _isShutdown = false;
 
-        private final Deque<AcquireCallback<V>> _takes;
-        private final Deque<V> _puts = new LinkedBlockingDeque();
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Ring<Waiter> _takes;
+        private final Ring<Entry> _puts = new Ring<Entry>(Integer.MAX_VALUE);
         private final K _key;
 
         final AtomicLong incoming = new AtomicLong(0);
         final AtomicLong completed = new AtomicLong(0);
         final AtomicLong rejected = new AtomicLong(0);
         final AtomicInteger objects = new AtomicInteger(0);
+        final AtomicInteger creating = new AtomicInteger(0);
+
+        // the number of waiters which have been abandoned, but not yet removed from '_takes'
+        final AtomicInteger abandoned = new AtomicInteger(0);
+
+        // the number of objects leased via the thread-local fast path, which are still on '_puts'
+        final AtomicInteger stale = new AtomicInteger(0);
+
+        // the number of idle objects expired in the current tick, only touched by the control loop
+        int expiring = 0;
 
         public Queue(K key, int queueSize) {
             _key = key;
-            _takes = new LinkedBlockingDeque(queueSize);
+            _takes = new Ring<Waiter>(queueSize);
         }
 
         public int getQueueLength() {
-            return _takes.size();
+            return Math.max(0, _takes.size() - abandoned.get());
+        }
+
+        /**
+         * @return how long the oldest pending take has waited, in nanoseconds, or 0 if there are none
+         */
+        public long oldestTakeLatency() {
+            _lock.lock();
+            try {
+                purgeTakes();
+                Waiter w = _takes.peekFirst();
+                return w instanceof Pool.Request ? System.nanoTime() - ((Pool.Request) w)._start : 0;
+            } finally {
+                _lock.unlock();
+            }
         }
 
         public int availableObjectsCount() {
-            return _puts.size();
+            return Math.max(0, _puts.size() - stale.get());
         }
 
-        public void cancelTake(AcquireCallback<V> take) {
-            _takes.remove(take);
+        /**
+         * Abandons a pending take, which will be skipped over rather than removed from the
+         * queue.  Returns false if the take has already been handed an object.
+         */
+        public boolean cancelTake(Waiter take) {
+            if (take.claim()) {
+                abandoned.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Returns the first pending take that hasn't been abandoned, having claimed it.
+         */
+        private Waiter pollTake() {
+            Waiter w = _takes.pollFirst();
+            while (w != null && !w.claim()) {
+                abandoned.decrementAndGet();
+                w = _takes.pollFirst();
+            }
+            return w;
         }
 
-        public void release(V obj) {
+        /**
+         * Fails the oldest pending request, skipping over any waiters which aren't requests.
+         *
+         * @return false if there were no pending requests
+         */
+        public boolean failTake(Throwable e) {
+            Waiter failed = null;
+
+            _lock.lock();
+            try {
+                List<Waiter> skipped = new ArrayList<Waiter>();
+                Waiter w = _takes.pollFirst();
+                while (w != null) {
+                    if (w.isClaimed()) {
+                        abandoned.decrementAndGet();
+                    } else if (!(w instanceof Pool.Request)) {
+                        skipped.add(w);
+                    } else if (w.claim()) {
+                        failed = w;
+                        break;
+                    } else {
+                        abandoned.decrementAndGet();
+                    }
+                    w = _takes.pollFirst();
+                }
+
+                for (int i = skipped.size() - 1; i >= 0; i--) {
+                    _takes.offerFirst(skipped.get(i));
+                }
+            } finally {
+                _lock.unlock();
+            }
+
+            if (failed == null) {
+                return false;
+            }
+            failed.handleError(e);
+            return true;
+        }
+
+        /**
+         * Removes any abandoned takes from the front of the queue.
+         */
+        private void purgeTakes() {
+            Waiter w = _takes.peekFirst();
+            while (w != null && w.isClaimed()) {
+                _takes.pollFirst();
+                abandoned.decrementAndGet();
+                w = _takes.peekFirst();
+            }
+        }
+
+        public void release(Entry e) {
             completed.incrementAndGet();
-            put(obj);
+            put(e);
         }
 
-        public void destroy(V obj) {
+        public void destroy(Entry e) {
+            _entries.remove(e._obj, e);
             try {
-                _generator.destroy(_key, obj);
+                if (_asyncGenerator != null) {
+                    _asyncGenerator.destroy(_key, e._obj);
+                } else {
+                    _generator.destroy(_key, e._obj);
+                }
             } finally {
                 _numObjects.decrementAndGet();
             }
@@ -84,9 +558,14 @@ public class Pool<K,V> implements IPool<K,V> {
             }
 
             try {
-                take(new AcquireCallback<V>() {
-                        public void handleObject(V obj) {
-                            destroy(obj);
+                take(new Waiter() {
+                        public void handleObject(Entry e) {
+                            if ((e.condemn() & LIFECYCLE) == LEASED) {
+                                destroy(e);
+                            } else {
+                                // it was disposed of in the meantime
+                                objects.incrementAndGet();
+                            }
                         }
                     }, true);
             } catch (RejectedExecutionException e) {
@@ -96,7 +575,7 @@ public class Pool<K,V> implements IPool<K,V> {
             }
         }
 
-        private void put(V obj) {
+        private void put(Entry e) {
             _lock.lock();
 
             if (_isShutdown) {
@@ -104,20 +583,28 @@ public class Pool<K,V> implements IPool<K,V> {
                 throw new IllegalStateException("already shutdown");
             }
 
-            if (_destroyedObjects.contains(obj)) {
-                _destroyedObjects.remove(obj);
-                objects.decrementAndGet();
-                _lock.unlock();
-                destroy(obj);
+            if (e.lease() == -1) {
+                // condemned object, clean it up, unless it's been
+                // leased via the fast path in the meantime
+                if (e.reap()) {
+                    objects.decrementAndGet();
+                    _lock.unlock();
+                    destroy(e);
+                } else {
+                    _lock.unlock();
+                }
                 return;
             }
 
-            AcquireCallback<V> c = _takes.poll();
-            if (c != null) {
+            Waiter w = pollTake();
+            if (w != null) {
                 _lock.unlock();
-                c.handleObject(obj);
+                w.handleObject(e);
             } else {
-                _puts.add(obj);
+                // if it was condemned in the meantime, it's already been destroyed
+                if (e.enqueue()) {
+                    _puts.offerLast(e);
+                }
                 _lock.unlock();
             }
         }
@@ -125,36 +612,35 @@ public class Pool<K,V> implements IPool<K,V> {
         public int cleanup() {
             _lock.lock();
 
-            List<V> live = new ArrayList<V>();
-            List<V> dead = new ArrayList<V>();
-            V obj = _puts.poll();
-            while (obj != null) {
-                if (!_destroyedObjects.contains(obj)) {
-                    live.add(obj);
-                } else {
-                    dead.add(obj);
-                    _destroyedObjects.remove(obj);
+            // rotate through the idle objects, keeping the live ones in order
+            List<Entry> dead = null;
+            for (int i = _puts.size(); i > 0; i--) {
+                Entry e = _puts.pollFirst();
+                if (!e.isCondemned()) {
+                    _puts.offerLast(e);
+                } else if (e.reap()) {
+                    if (dead == null) {
+                        dead = new ArrayList<Entry>();
+                    }
+                    dead.add(e);
                     objects.decrementAndGet();
                 }
-                obj = _puts.poll();
             }
 
             int numObjects = objects.get();
 
-            if (! live.isEmpty()) {
-                _puts.addAll(live);
-            }
-
             _lock.unlock();
 
-            for (V o : dead) {
-                destroy(o);
+            if (dead != null) {
+                for (Entry o : dead) {
+                    destroy(o);
+                }
             }
 
             return numObjects;
         }
 
-        public boolean take(AcquireCallback<V> c, boolean skipToFront) throws RejectedExecutionException {
+        public boolean take(Waiter w, boolean skipToFront) throws RejectedExecutionException {
             incoming.incrementAndGet();
             _lock.lock();
 
@@ -163,30 +649,46 @@ public class Pool<K,V> implements IPool<K,V> {
                 throw new IllegalStateException("already shutdown");
             }
 
-            V obj = _puts.poll();
-            while (_destroyedObjects.contains(obj)) {
-                // expired object, clean it up and try again
-                _destroyedObjects.remove(obj);
-                objects.decrementAndGet();
+            // in LIFO mode, requests get the most recently released object, but objects
+            // being dropped come from the other end of the queue
+            boolean newest = _lifo && !skipToFront;
 
-                _lock.unlock();
-                destroy(obj);
-                _lock.lock();
+            Entry e = newest ? _puts.pollLast() : _puts.pollFirst();
+            while (e != null) {
+                int lifecycle = e.dequeue() & LIFECYCLE;
+                if (lifecycle == IDLE) {
+                    break;
+                } else if (lifecycle == LEASED) {
+                    // leased via the fast path, it'll be put back when it's released
+                    stale.decrementAndGet();
+                } else if (lifecycle == CONDEMNED && e.reap()) {
+                    // condemned object, clean it up and try again
+                    objects.decrementAndGet();
 
-                obj = _puts.poll();
+                    _lock.unlock();
+                    destroy(e);
+                    _lock.lock();
+                }
+
+                e = newest ? _puts.pollLast() : _puts.pollFirst();
             }
 
-            if (obj != null) {
+            if (e != null) {
 
                 // we got one, send it out
+                w.claim();
                 _lock.unlock();
-                c.handleObject(obj);
+                w.handleObject(e);
                 return true;
             } else {
 
                 // we didn't get one, try to enqueue our request
                 // or reject the request if there are too many already
-                boolean success = (skipToFront ? _takes.offerFirst(c) : _takes.offerLast(c));
+                boolean success = (skipToFront ? _takes.offerFirst(w) : _takes.offerLast(w));
+                if (!success) {
+                    purgeTakes();
+                    success = (skipToFront ? _takes.offerFirst(w) : _takes.offerLast(w));
+                }
                 _lock.unlock();
                 if (!success) {
                     rejected.incrementAndGet();
@@ -199,19 +701,65 @@ public class Pool<K,V> implements IPool<K,V> {
 
     // static field
     private static AtomicInteger _numPools = new AtomicInteger(0);
+    private static final AtomicIntegerFieldUpdater<Pool<?,?>.Request> CLOSED = updater(Pool.Request.class, "_closed");
+    private static final AtomicIntegerFieldUpdater<Pool<?,?>.Entry> STATE = updater(Pool.Entry.class, "_state");
+    private static final AtomicIntegerFieldUpdater<Pool<?,?>.Waiter> CLAIMED = updater(Pool.Waiter.class, "_claimed");
+
+    // a class literal can't be parameterized, so the updater's type is only known via the field
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <T> AtomicIntegerFieldUpdater<T> updater(Class<?> cls, String field) {
+        return AtomicIntegerFieldUpdater.newUpdater((Class) cls, field);
+    }
+
+    // object lifecycle states
+    private static final int IDLE = 0;
+    private static final int LEASED = 1;
+    private static final int CONDEMNED = 2;
+    private static final int DESTROYED = 3;
+    private static final int LIFECYCLE = 3;
+    private static final int QUEUED = 4;
 
     // fields
     private final int _maxQueueSize;
     private final Generator<K,V> _generator;
+    private final AsyncGenerator<K,V> _asyncGenerator;
+    private final int _maxConcurrentCreates;
     private final Controller<K> _controller;
     private final double _rateMultiplier;
 
+    // the control loop's state, only touched by 'tick'
+    private final int _iterations;
+    private int _iteration = 0;
+
+    private final ControlLoop _controlLoop;
+
     private volatile boolean _isShutdown = false;
+    private volatile int _minIdle = 0;
+    private volatile long _idleTimeout = 0;
+    private volatile long _maxLifetime = 0;
+    private volatile boolean _threadAffinity = false;
+    private volatile boolean _lifo = false;
+
+    // the thresholds past which the control loop will add objects between control periods
+    private volatile int _burstQueueLength = Integer.MAX_VALUE;
+    private volatile long _burstQueueLatency = Long.MAX_VALUE;
+    private volatile int _burstStep = 0;
+    private final ThreadLocal<Entry> _lastReleased = new ThreadLocal<Entry>();
 
     private final AtomicInteger _numObjects = new AtomicInteger(0);
-    private final ReentrantLock _lock = new ReentrantLock();
-    private final Set<V> _destroyedObjects = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<V, Boolean>()));
-    private final ConcurrentHashMap<V,Long> _start = new ConcurrentHashMap<V,Long>();
+    private final ConcurrentHashMap<V,Entry> _entries = new ConcurrentHashMap<V,Entry>();
+    private final ConcurrentLinkedQueue<Entry> _newEntries = new ConcurrentLinkedQueue<Entry>();
+    private final List<Queue> _expiredQueues = new ArrayList<Queue>();
+    private final ConcurrentLinkedQueue<Request> _timedRequests = new ConcurrentLinkedQueue<Request>();
+
+    // the approximate number of requests in '_deadlines' which have been claimed, and no longer need to expire
+    private final AtomicInteger _staleDeadlines = new AtomicInteger(0);
+    private final PriorityQueue<Request> _deadlines = new PriorityQueue<Request>(11, new Comparator<Request>() {
+            public int compare(Request a, Request b) {
+                return Long.compare(a._deadline - b._deadline, 0);
+            }
+        });
+    private Wheel _wheel;
     private final ConcurrentHashMap<K,Queue> _queues = new ConcurrentHashMap<K,Queue>();
 
     private final Stats.UniformLongReservoirMap<K> _queueLatencies = new Stats.UniformLongReservoirMap<K>();
@@ -262,228 +810,844 @@ public class Pool<K,V> implements IPool<K,V> {
         return stats;
     }
 
-    private void addObject(K key) {
-        Queue q = queue(key);
+    /**
+     * Reserves room for one more object under the queue's key.  The per-key count is guarded
+     * by the queue's lock, and the total is claimed atomically, so keys never contend with
+     * each other while the controller's limits still hold across the whole pool.
+     *
+     * If 'onDemand' is true, nothing is reserved if there are already as many objects being
+     * created as there are pending requests.
+     */
+    private boolean reserveObject(Queue q, boolean onDemand) {
+        q._lock.lock();
+        try {
+            int creating = q.creating.get();
+            if (creating >= _maxConcurrentCreates
+                || (onDemand && creating >= q.getQueueLength())) {
+                return false;
+            }
+            while (true) {
+                int total = _numObjects.get();
+                if (!_controller.shouldIncrement(q._key, q.objects.get(), total)) {
+                    return false;
+                }
+                if (_numObjects.compareAndSet(total, total+1)) {
+                    q.objects.incrementAndGet();
+                    q.creating.incrementAndGet();
+                    return true;
+                }
+            }
+        } finally {
+            q._lock.unlock();
+        }
+    }
 
-        _lock.lock();
-        if (_controller.shouldIncrement(key, q.objects.get(), _numObjects.get())) {
+    private void unreserveObject(Queue q) {
+        _numObjects.decrementAndGet();
+        q.objects.decrementAndGet();
+        q.creating.decrementAndGet();
+    }
 
-            // get all of our numbers aligned before unlocking
-            _numObjects.incrementAndGet();
-            q.objects.incrementAndGet();
-            _lock.unlock();
+    private void putObject(Queue q, V obj) {
+        Entry e = new Entry(q, obj);
+        _entries.put(obj, e);
+        _newEntries.offer(e);
+        q.creating.decrementAndGet();
+        try {
+            q.put(e);
+        } catch (IllegalStateException ex) {
+            // the queue was shut down while the object was being created
+            e.condemn();
+            if (e.reap()) {
+                q.objects.decrementAndGet();
+                q.destroy(e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new object under the key, if the controller allows it.
+     *
+     * @return the stage which will yield the object if it's being created asynchronously, otherwise null
+     */
+    private CompletionStage<V> addObject(K key, boolean onDemand) {
+        final Queue q = queue(key);
 
+        if (!reserveObject(q, onDemand)) {
+            return null;
+        }
+
+        if (_asyncGenerator == null) {
+            V obj;
             try {
-                q.put(_generator.generate(key));
+                obj = _generator.generate(key);
             } catch (Exception e) {
-                _numObjects.decrementAndGet();
-                q.objects.decrementAndGet();
+                unreserveObject(q);
                 throw new RuntimeException(e);
             }
-        } else {
-            _lock.unlock();
+            putObject(q, obj);
+            return null;
         }
-    }
 
-    private void startControlLoop(int duration, int iterations) {
+        CompletionStage<V> stage;
+        try {
+            stage = _asyncGenerator.generate(key);
+        } catch (Throwable e) {
+            unreserveObject(q);
+            throw new RuntimeException(e);
+        }
 
-        int iteration = 0;
+        stage.whenComplete(new BiConsumer<V,Throwable>() {
+                public void accept(V obj, Throwable e) {
+                    if (e != null) {
+                        unreserveObject(q);
 
-        try {
-            while (!_isShutdown) {
+                        // fail any waiters the remaining creates can't cover, since nothing else
+                        // will start a create for them
+                        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        while (q.getQueueLength() > q.creating.get() && q.failTake(cause)) {
+                        }
+                    } else {
+                        putObject(q, obj);
+
+                        // we may have deferred creation for other waiters
+                        if (q.getQueueLength() > q.creating.get()) {
+                            try {
+                                addObject(q._key, true);
+                            } catch (RuntimeException ex) {
+                            }
+                        }
+                    }
+                }
+            });
 
-                iteration = (iteration + 1) % iterations;
+        return stage;
+    }
 
-                long start = System.currentTimeMillis();
+    private int minIdle(K key) {
+        return Math.max(_minIdle, _controller.minIdle(key));
+    }
 
-                for (Map.Entry<K, Queue> entry : _queues.entrySet()) {
-                    K key = entry.getKey();
-                    Queue q = entry.getValue();
-                    long completed = q.completed.getAndSet(0);
-                    long incoming = q.incoming.getAndSet(0);
-                    long rejected = q.rejected.getAndSet(0);
-                    int objects = q.objects.get();
-                    int queueLength = q.getQueueLength();
-                    int available = q.availableObjectsCount();
+    /**
+     * Creates objects for any key which has fewer idle objects than its minimum, so that the
+     * next acquire doesn't have to wait for one.
+     */
+    private void replenish() {
+        for (Queue q : _queues.values()) {
+            int deficit = minIdle(q._key) - (q.availableObjectsCount() + q.creating.get());
+            for (int i = 0; i < deficit && !_isShutdown; i++) {
+                try {
+                    addObject(q._key, false);
+                } catch (RuntimeException e) {
+                    // we'll try again on the next tick
+                    break;
+                }
+            }
+        }
+    }
 
-                    _queueLengths.sample(key, queueLength);
-                    _taskArrivalRates.sample(key, incoming * _rateMultiplier);
-                    _taskCompletionRates.sample(key, completed * _rateMultiplier);
-                    _taskRejectionRates.sample(key, rejected * _rateMultiplier);
+    /**
+     * Creates objects under any key whose queue has grown past the burst thresholds.
+     */
+    private void scaleUpBursts() {
+        int step = _burstStep;
+        if (step <= 0) {
+            return;
+        }
 
-                    double utilization = 1.0 - ((available - queueLength) / Math.max(1.0, objects));
-                    _utilizations.sample(key, utilization);
+        for (Queue q : _queues.values()) {
+            int queueLength = q.getQueueLength();
+            if (queueLength == 0) {
+                continue;
+            }
+
+            if (queueLength >= _burstQueueLength || q.oldestTakeLatency() >= _burstQueueLatency) {
+                for (int i = 0; i < step && !_isShutdown; i++) {
+                    try {
+                        // on demand, so we never create more objects than there are waiters
+                        addObject(q._key, true);
+                    } catch (RuntimeException e) {
+                        // we'll try again on the next tick
+                        break;
+                    }
                 }
+            }
+        }
+    }
 
-                if (_isShutdown) {
-                    break;
+    /**
+     * @return the next time at which 'e' might need to be expired
+     */
+    private long deadline(Entry e, long now) {
+        long deadline = now + _wheel.span();
+        long idleTimeout = _idleTimeout;
+        long maxLifetime = _maxLifetime;
+
+        if (maxLifetime > 0) {
+            deadline = Math.min(deadline, e._created + maxLifetime);
+        }
+        if (idleTimeout > 0) {
+            deadline = Math.min(deadline, (e.isIdle() ? e._lastUsed : now) + idleTimeout);
+        }
+        return deadline;
+    }
+
+    /**
+     * Expires 'e' if it's idle and has been so for too long, or has outlived its maximum lifetime,
+     * otherwise puts it back on the wheel.  Objects which outlive their lifetime while in use are
+     * disposed of when they're released.
+     */
+    private void check(Entry e, long now) {
+        if (e.isCondemned()) {
+            return;
+        }
+
+        Queue q = e._queue;
+        long idleTimeout = _idleTimeout;
+        long maxLifetime = _maxLifetime;
+
+        boolean expired = false;
+        if (maxLifetime > 0 && now - e._created >= maxLifetime) {
+            expired = e.expire();
+        } else if (idleTimeout > 0
+                   && now - e._lastUsed >= idleTimeout
+                   && q.availableObjectsCount() - q.expiring > minIdle(q._key)) {
+            expired = e.expire();
+        }
+
+        if (expired) {
+            if (q.expiring++ == 0) {
+                _expiredQueues.add(q);
+            }
+        } else {
+            _wheel.schedule(e, deadline(e, now));
+        }
+    }
+
+    /**
+     * Adds any newly created objects to the wheel, and cleans up any idle objects which have expired.
+     */
+    private void expireObjects() {
+        long now = System.nanoTime();
+
+        Entry e = _newEntries.poll();
+        while (e != null) {
+            _wheel.schedule(e, deadline(e, now));
+            e = _newEntries.poll();
+        }
+
+        _wheel.advance(now);
+
+        for (Queue q : _expiredQueues) {
+            q.expiring = 0;
+            q.cleanup();
+        }
+        _expiredQueues.clear();
+    }
+
+    /**
+     * Abandons any callback-based requests whose deadline has passed.
+     */
+    private void expireRequests() {
+        long now = System.nanoTime();
+
+        Request r = _timedRequests.poll();
+        while (r != null) {
+            r._scheduled = true;
+            if (!r.isClaimed()) {
+                _deadlines.add(r);
+            }
+            r = _timedRequests.poll();
+        }
+
+        // satisfied requests are left in the heap, so once they're the majority, drop them all
+        // rather than holding onto their objects and callbacks until their deadlines pass
+        if (_staleDeadlines.get() > _deadlines.size() / 2) {
+            _staleDeadlines.set(0);
+            for (Iterator<Request> it = _deadlines.iterator(); it.hasNext(); ) {
+                if (it.next().isClaimed()) {
+                    it.remove();
                 }
+            }
+        }
 
-                // update worker count
-                if (iteration == 0) {
-                    final Map<K,Stats> _stats = updateStats();
-                    final Map<K,Integer> adjustment = _controller.adjustment(_stats);
+        r = _deadlines.peek();
+        while (r != null && (r.isClaimed() || r._deadline - now <= 0)) {
+            _deadlines.poll();
+            r._scheduled = false;
+            if (r._queue.cancelTake(r)) {
+                r.handleError(new TimeoutException());
+            } else if (_staleDeadlines.get() > 0) {
+                _staleDeadlines.decrementAndGet();
+            }
+            r = _deadlines.peek();
+        }
 
-                    // clear out any unused queues
-                    _lock.lock();
-                    for (Map.Entry<K,Stats> entry : _stats.entrySet()) {
-                        K key = entry.getKey();
-                        if (entry.getValue().getUtilization(1) == 0
-                            && _queues.get(key).objects.get() == 0) {
-                            _queues.remove(key).shutdown();
-
-                            // clean up stats so they don't remain in memory forever
-                            _queueLatencies.remove(key);
-                            _taskLatencies.remove(key);
-                            _queueLengths.remove(key);
-                            _utilizations.remove(key);
-                            _taskArrivalRates.remove(key);
-                            _taskCompletionRates.remove(key);
-                            _taskRejectionRates.remove(key);
-                        }
-                    }
-                    _lock.unlock();
+        for (Queue q : _queues.values()) {
+            if (q.abandoned.get() > 0) {
+                q._lock.lock();
+                q.purgeTakes();
+                q._lock.unlock();
+            }
+        }
+    }
 
-                    // defer pool growth until we've reduced other pools
-                    List<K> upward = new ArrayList<K>();
+    /**
+     * Samples each key's state, and every so often applies the controller's adjustments, invoked
+     * once per sample period by the control loop.
+     */
+    private void tick() {
+        if (_isShutdown) {
+            return;
+        }
 
-                    for (Map.Entry<K,Integer> entry : adjustment.entrySet()) {
-                        int n = entry.getValue();
-                        if (n < 0) {
-                            Queue q = queue(entry.getKey());
-                            for (int i = 0; i < -n; i++) {
-                                q.drop();
-                            }
-                            q.cleanup();
-                        } else if (n > 1) {
-                            for (int i = 0; i < n; i++) {
-                                upward.add(entry.getKey());
-                            }
-                        }
-                    }
+        _iteration = (_iteration + 1) % _iterations;
+
+        for (Map.Entry<K, Queue> entry : _queues.entrySet()) {
+            K key = entry.getKey();
+            Queue q = entry.getValue();
+            long completed = q.completed.getAndSet(0);
+            long incoming = q.incoming.getAndSet(0);
+            long rejected = q.rejected.getAndSet(0);
+            int objects = q.objects.get();
+            int queueLength = q.getQueueLength();
+            int available = q.availableObjectsCount();
+
+            _queueLengths.sample(key, queueLength);
+            _taskArrivalRates.sample(key, incoming * _rateMultiplier);
+            _taskCompletionRates.sample(key, completed * _rateMultiplier);
+            _taskRejectionRates.sample(key, rejected * _rateMultiplier);
+
+            double utilization = 1.0 - ((available - queueLength) / Math.max(1.0, objects));
+            _utilizations.sample(key, utilization);
+        }
+
+        if (_isShutdown) {
+            return;
+        }
 
-                    // if we don't have room for everything, make sure we grow
-                    // a random subset
-                    Collections.shuffle(upward);
-                    for (K key : upward) {
-                        addObject(key);
+        // update worker count
+        if (_iteration == 0) {
+            final Map<K,Stats> _stats = updateStats();
+            final Map<K,Integer> adjustment = _controller.adjustment(_stats);
+
+            // clear out any unused queues
+            for (Map.Entry<K,Stats> entry : _stats.entrySet()) {
+                K key = entry.getKey();
+                Queue q = _queues.get(key);
+                q._lock.lock();
+                try {
+                    if (entry.getValue().getUtilization(1) == 0
+                        && q.objects.get() == 0) {
+                        _queues.remove(key);
+                        q.shutdown();
+
+                        // clean up stats so they don't remain in memory forever
+                        _queueLatencies.remove(key);
+                        _taskLatencies.remove(key);
+                        _queueLengths.remove(key);
+                        _utilizations.remove(key);
+                        _taskArrivalRates.remove(key);
+                        _taskCompletionRates.remove(key);
+                        _taskRejectionRates.remove(key);
                     }
+                } finally {
+                    q._lock.unlock();
                 }
+            }
+
+            // defer pool growth until we've reduced other pools
+            List<K> upward = new ArrayList<K>();
 
-                Thread.sleep(Math.max(0, duration - (System.currentTimeMillis() - start)));
+            for (Map.Entry<K,Integer> entry : adjustment.entrySet()) {
+                int n = entry.getValue();
+                if (n < 0) {
+                    Queue q = queue(entry.getKey());
+
+                    // never shrink below the minimum number of idle objects
+                    n = -Math.min(-n, Math.max(0, q.availableObjectsCount() - minIdle(q._key)));
+                    for (int i = 0; i < -n; i++) {
+                        q.drop();
+                    }
+                    q.cleanup();
+                } else if (n > 0) {
+                    for (int i = 0; i < n; i++) {
+                        upward.add(entry.getKey());
+                    }
+                }
             }
-        } catch (InterruptedException e) {
 
+            // if we don't have room for everything, make sure we grow
+            // a random subset
+            Collections.shuffle(upward);
+            for (K key : upward) {
+                addObject(key, false);
+            }
+        } else {
+            scaleUpBursts();
         }
+
+        expireRequests();
+        expireObjects();
+        replenish();
     }
 
-    // constructor
+    // constructors
 
     public Pool(Generator<K,V> generator, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit) {
+        this(generator, null, Integer.MAX_VALUE, controller, maxQueueSize, samplePeriod, controlPeriod, unit, null);
+    }
+
+    /**
+     * A pool whose control loop runs on 'scheduler' rather than its own thread, which allows many
+     * pools and executors to share a few threads.  See Executors.controlScheduler().
+     *
+     * The control loop calls 'generator' itself when it grows the pool or replaces disposed
+     * objects, so a slow 'generate' holds up the ticks of every other pool and executor on the
+     * same scheduler.  Unless 'generate' is fast, prefer an asynchronous generator.
+     */
+    public Pool(Generator<K,V> generator, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit, ScheduledExecutorService scheduler) {
+        this(generator, null, Integer.MAX_VALUE, controller, maxQueueSize, samplePeriod, controlPeriod, unit, scheduler);
+    }
+
+    /**
+     * A pool whose objects are created by 'generator' on 'creationExecutor', rather than on the
+     * thread which requested them.  The executor should have a bounded number of threads, which
+     * bounds how many objects can be created at once.
+     */
+    public Pool(final Generator<K,V> generator, final java.util.concurrent.Executor creationExecutor, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit) {
+        this(null,
+             new AsyncGenerator<K,V>() {
+                 public CompletionStage<V> generate(final K key) {
+                     return CompletableFuture.supplyAsync(new Supplier<V>() {
+                             public V get() {
+                                 try {
+                                     return generator.generate(key);
+                                 } catch (Exception e) {
+                                     throw new CompletionException(e);
+                                 }
+                             }
+                         }, creationExecutor);
+                 }
+
+                 public void destroy(K key, V val) {
+                     generator.destroy(key, val);
+                 }
+             },
+             Integer.MAX_VALUE, controller, maxQueueSize, samplePeriod, controlPeriod, unit, null);
+    }
+
+    /**
+     * A pool whose objects are created asynchronously by 'generator', with at most
+     * 'maxConcurrentCreates' objects being created at once for any given key.
+     */
+    public Pool(AsyncGenerator<K,V> generator, int maxConcurrentCreates, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit) {
+        this(null, generator, maxConcurrentCreates, controller, maxQueueSize, samplePeriod, controlPeriod, unit, null);
+    }
+
+    /**
+     * An asynchronous pool whose control loop runs on 'scheduler' rather than its own thread.
+     */
+    public Pool(AsyncGenerator<K,V> generator, int maxConcurrentCreates, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit, ScheduledExecutorService scheduler) {
+        this(null, generator, maxConcurrentCreates, controller, maxQueueSize, samplePeriod, controlPeriod, unit, scheduler);
+    }
+
+    private Pool(Generator<K,V> generator, AsyncGenerator<K,V> asyncGenerator, int maxConcurrentCreates, Controller<K> controller, int maxQueueSize, long samplePeriod, long controlPeriod, TimeUnit unit, ScheduledExecutorService scheduler) {
         _generator = generator;
+        _asyncGenerator = asyncGenerator;
+        _maxConcurrentCreates = maxConcurrentCreates;
         _controller = controller;
         _maxQueueSize = maxQueueSize;
 
-        final int duration = (int) unit.toMillis(samplePeriod);
-        final int iterations = (int) (controlPeriod / samplePeriod);
+        int duration = (int) unit.toMillis(samplePeriod);
+        _iterations = (int) (controlPeriod / samplePeriod);
         _rateMultiplier = (double) unit.toMillis(1000) / duration;
+        _wheel = new Wheel(512, TimeUnit.MILLISECONDS.toNanos(duration));
 
-        Thread t =
-            new Thread(new Runnable() {
+        _controlLoop =
+            ControlLoop.start(new Runnable() {
                     public void run() {
-                        startControlLoop(duration, iterations);
+                        tick();
                     }
                 },
-                "dirigiste-pool-controller-" + _numPools.getAndIncrement());
-        t.setDaemon(true);
-        t.start();
-
+                duration,
+                "dirigiste-pool-controller-" + _numPools.getAndIncrement(),
+                scheduler);
     }
 
     // public methods
 
-    @Override
-    public void acquire(final K key, final AcquireCallback<V> callback) {
+    /**
+     * Sets the number of idle objects the pool will try to keep ready under every key it has
+     * seen, creating them in the background as they're used.  A controller may ask for more
+     * under a particular key via {@link IPool.Controller#minIdle}.
+     *
+     * @param minIdle  the minimum number of idle objects per key
+     */
+    public void setMinIdle(int minIdle) {
+        _minIdle = minIdle;
+    }
+
+    /**
+     * @return the minimum number of idle objects per key
+     */
+    public int getMinIdle() {
+        return _minIdle;
+    }
+
+    /**
+     * Sets how long an object may sit unused before it's destroyed in the background, though
+     * never below the minimum number of idle objects for its key.  A value of 0 disables this.
+     *
+     * @param timeout  the idle timeout
+     * @param unit  the time unit for 'timeout'
+     */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        _idleTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets how long an object may live before it's destroyed, regardless of use.  Idle objects are
+     * destroyed in the background, objects in use are destroyed once they're released.  A value
+     * of 0 disables this.
+     *
+     * @param lifetime  the maximum lifetime
+     * @param unit  the time unit for 'lifetime'
+     */
+    public void setMaxLifetime(long lifetime, TimeUnit unit) {
+        _maxLifetime = unit.toNanos(lifetime);
+    }
+
+    /**
+     * Tries to lease the object this thread last released, without touching the shared queue.
+     */
+    private boolean takeLastReleased(Queue q, Request r) {
+        Entry e = _lastReleased.get();
+        if (e == null || e._queue != q || q._isShutdown) {
+            return false;
+        }
+
+        int prior = e.lease();
+        if (prior == -1) {
+            _lastReleased.set(null);
+            return false;
+        }
+
+        if ((prior & QUEUED) != 0) {
+            q.stale.incrementAndGet();
+        }
+        q.incoming.incrementAndGet();
+        r.claim();
+        r.handleObject(e);
+        return true;
+    }
+
+    /**
+     * Enables or disables a thread-local fast path, where each thread remembers the last object it
+     * released.  If the same thread then acquires an object under that key, it will try to lease
+     * that object directly rather than going through the key's queue.  Objects remain on the queue
+     * while cached, so they can still be acquired by any other thread.
+     *
+     * @param threadAffinity  whether the fast path should be used
+     */
+    public void setThreadAffinity(boolean threadAffinity) {
+        _threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Sets the order in which idle objects are reused.  By default this is FIFO, which spreads
+     * requests across every idle object.  In LIFO mode, the most recently released object is
+     * reused first, so surplus objects stay idle and can be dropped by the controller or expired
+     * via the idle timeout.
+     *
+     * @param lifo  whether idle objects should be reused in LIFO order
+     */
+    public void setLifo(boolean lifo) {
+        _lifo = lifo;
+    }
+
+    /**
+     * Enables fast scale-up between control periods.  Objects are normally only created when
+     * they're acquired, so requests which arrive while the controller won't allow more objects
+     * wait for a release or the next control period.  With this enabled, on every sample, if a
+     * key has at least 'queueLength' pending acquires, or the oldest has waited at least
+     * 'queueLatency', up to 'step' new objects are created under that key, as long as the
+     * controller allows them and there are more pending acquires than objects being created.
+     * Scale-down still only happens once per control period.
+     *
+     * @param queueLength  the number of pending acquires which triggers a scale-up
+     * @param queueLatency  the queue latency which triggers a scale-up
+     * @param unit  the time unit for 'queueLatency'
+     * @param step  the maximum number of objects created per key per sample, or 0 to disable this
+     */
+    public void setBurstScaleUp(int queueLength, long queueLatency, TimeUnit unit, int step) {
+        _burstQueueLength = queueLength;
+        _burstQueueLatency = unit.toNanos(queueLatency);
+        _burstStep = step;
+    }
+
+    private Request request(K key, long deadline, final LeaseCallback<K,V> callback) {
         final long start = System.nanoTime();
 
-        Queue q = queue(key);
-        AcquireCallback<V> wrapper =
-            new AcquireCallback<V>() {
-                    public void handleObject(V obj) {
+        final Queue q = queue(key);
+        final Request r = new Request(q, start, deadline, callback);
 
-                        // do all the latency bookkeeping
-                        long acquire = System.nanoTime();
-                        _queueLatencies.sample(key, acquire - start);
-                        _start.put(obj, start);
+        if (_threadAffinity && takeLastReleased(q, r)) {
+            return r;
+        }
 
-                        callback.handleObject(obj);
-                    }
-            };
-        boolean success = q.take(wrapper, false);
+        boolean success = q.take(r, false);
 
-        // if we didn't immediately get an object, try to create one
+        // if we didn't immediately get an object, try to create one, if creation fails
+        // asynchronously the oldest waiter will be told
         if (!success) {
             try {
-                addObject(key);
+                addObject(key, true);
             } catch (Throwable e) {
-                q.cancelTake(wrapper);
+                q.cancelTake(r);
                 throw new RuntimeException(e);
             }
         }
+
+        return r;
+    }
+
+    /**
+     * Parks until 'r' is satisfied, or until 'deadline' if 'timed' is true, abandoning the
+     * request if it hasn't been satisfied by then.
+     */
+    private void await(Request r, boolean timed, long deadline) throws InterruptedException, TimeoutException {
+        while (!r.isDone()) {
+            if (Thread.interrupted()) {
+                if (r._queue.cancelTake(r)) {
+                    throw new InterruptedException();
+                }
+                awaitUninterruptibly(r);
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if (!timed) {
+                LockSupport.park(this);
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (r._queue.cancelTake(r)) {
+                        throw new TimeoutException();
+                    }
+
+                    // we've been handed an object, so it's on its way
+                    awaitUninterruptibly(r);
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        }
+
+        if (r._error != null) {
+            throw new RuntimeException(r._error);
+        }
+    }
+
+    private void awaitUninterruptibly(Request r) {
+        boolean interrupted = false;
+        while (!r.isDone()) {
+            LockSupport.park(this);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
-    public V acquire(K key) throws InterruptedException {
-        final AtomicReference<V> ref = new AtomicReference<V>(null);
-        final CountDownLatch latch = new CountDownLatch(1);
+    public void acquireLease(K key, LeaseCallback<K,V> callback) {
+        request(key, Long.MAX_VALUE, callback);
+    }
+
+    @Override
+    public void acquireLease(K key, long timeout, TimeUnit unit, LeaseCallback<K,V> callback) {
+        Request r = request(key, System.nanoTime() + unit.toNanos(timeout), callback);
+        if (!r.isClaimed()) {
+            _timedRequests.offer(r);
+        }
+    }
 
-        acquire(key, new AcquireCallback<V>() {
-                public void handleObject(V obj) {
-                    ref.set(obj);
-                    latch.countDown();
+    @Override
+    public Lease<K,V> acquireLease(K key, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Request r = request(key, deadline, null);
+        await(r, true, deadline);
+        return r;
+    }
+
+    @Override
+    public V acquire(K key, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        Request h = (Request) acquireLease(key, timeout, unit);
+        h._entry._handle = h;
+        return h._entry._obj;
+    }
+
+    @Override
+    public void acquire(K key, long timeout, TimeUnit unit, final AcquireCallback<V> callback) {
+        acquireLease(key, timeout, unit, new LeaseCallback<K,V>() {
+                public void handleLease(Lease<K,V> lease) {
+                    Request h = (Request) lease;
+                    h._entry._handle = h;
+                    callback.handleObject(h._entry._obj);
+                }
+
+                public void handleError(Throwable e) {
+                    callback.handleError(e);
                 }
             });
+    }
 
-        latch.await();
-        return ref.get();
+    @Override
+    public Lease<K,V> acquireLease(K key) throws InterruptedException {
+        Request r = request(key, Long.MAX_VALUE, null);
+        try {
+            await(r, false, 0);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+        return r;
     }
 
     @Override
-    public void release(K key, V obj) {
-        long end = System.nanoTime();
-        Long start = _start.remove(obj);
+    public void acquire(K key, final AcquireCallback<V> callback) {
+        acquireLease(key, new LeaseCallback<K,V>() {
+                public void handleLease(Lease<K,V> lease) {
+                    Request h = (Request) lease;
+                    h._entry._handle = h;
+                    callback.handleObject(h._entry._obj);
+                }
 
-        if (start != null) {
-            _taskLatencies.sample(key, end - start.longValue());
-            queue(key).release(obj);
-        }
+                public void handleError(Throwable e) {
+                    callback.handleError(e);
+                }
+            });
     }
 
     @Override
-    public void dispose(K key, V obj) {
-        Queue q = queue(key);
+    public V acquire(K key) throws InterruptedException {
+        Request h = (Request) acquireLease(key);
+        h._entry._handle = h;
+        return h._entry._obj;
+    }
+
+    private void release(Request h) {
+        long end = System.nanoTime();
+        Entry e = h._entry;
+
+        _taskLatencies.sample(e._queue._key, end - h._start);
 
-        _lock.lock();
-        _destroyedObjects.add(obj);
-        int pendingTakes = q._takes.size();
-        Long start = _start.remove(obj);
-        _lock.unlock();
+        long maxLifetime = _maxLifetime;
+        if (maxLifetime > 0 && end - e._created >= maxLifetime) {
+            dispose(e);
+            return;
+        }
+
+        e._lastUsed = end;
+
+        // if it's been condemned while leased, it's already been destroyed
+        Queue q = e._queue;
+        int prior = e.unlease();
+        if (prior == -1) {
+            return;
+        }
 
-        // if it's been taken, "put" it back so it can be cleaned up
-        if (start != null) {
-            q.put(obj);
+        if ((prior & QUEUED) != 0 && !q._isShutdown) {
+            // leased via the fast path, so it never left the queue
+            q.stale.decrementAndGet();
+            q.completed.incrementAndGet();
         } else {
+            q.release(e);
+        }
+
+        if (_threadAffinity) {
+            _lastReleased.set(e);
+        }
+    }
+
+    private void dispose(Entry e) {
+        Queue q = e._queue;
+        int pendingTakes = q.getQueueLength();
+
+        int prior = e.condemn();
+        switch (prior & LIFECYCLE) {
+        case LEASED:
+            // nobody else will see it, so clean it up now
+            q.objects.decrementAndGet();
+            q.destroy(e);
+
+            // if it was leased via the fast path, it's still on the queue
+            if ((prior & QUEUED) != 0) {
+                q.stale.decrementAndGet();
+                q.cleanup();
+            }
+            break;
+        case IDLE:
             q.cleanup();
+            break;
+        default:
+            return;
         }
 
         if (pendingTakes > 0) {
-            addObject(key);
+            addObject(q._key, true);
+        }
+    }
+
+    @Override
+    public void release(Lease<K,V> lease) {
+        Request h = (Request) lease;
+
+        if (!h.close()) {
+            throw new IllegalStateException("lease already released");
+        }
+
+        release(h);
+    }
+
+    @Override
+    public void release(K key, V obj) {
+        Entry e = _entries.get(obj);
+        Request h = e == null ? null : e._handle;
+
+        if (h != null && h.close()) {
+            release(h);
+        }
+    }
+
+    @Override
+    public void dispose(Lease<K,V> lease) {
+        Request h = (Request) lease;
+
+        if (!h.close()) {
+            throw new IllegalStateException("lease already released");
+        }
+
+        dispose(h._entry);
+    }
+
+    @Override
+    public void dispose(K key, V obj) {
+        Entry e = _entries.get(obj);
+
+        if (e != null) {
+            Request h = e._handle;
+            if (h != null) {
+                h.close();
+            }
+            dispose(e);
         }
     }
 
     @Override
     public void shutdown() {
         _isShutdown = true;
+        _controlLoop.stop();
         for (Map.Entry<K,Queue> entry : _queues.entrySet()) {
             entry.getValue().shutdown();
         }
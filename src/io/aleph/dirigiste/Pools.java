@@ -50,6 +50,125 @@ public class Pools {
         };
     }
 
+    /**
+     * A PID controller which targets a level of mean utilization per key, with default gains.
+     *
+     * @param targetUtilization the target utilization per key, within [0, 1]
+     * @param maxObjectsPerKey the maximum number of pooled objects per key
+     * @param maxTotalObjects the total number of object that the pool can contain
+     */
+    public static <K> IPool.Controller<K> pidController(double targetUtilization, int maxObjectsPerKey, int maxTotalObjects) {
+        return pidController(targetUtilization, maxObjectsPerKey, maxTotalObjects, 1.0, 0.1, 0.2);
+    }
+
+    /**
+     * A PID controller which targets a level of mean utilization per key, with separate state for
+     * each key.  The error is relative to the target, and the output is the relative change in the
+     * number of objects, which is limited to halving or doubling the objects for a key each
+     * control period.  The integral term isn't accumulated while the output is saturated, to
+     * avoid windup.
+     *
+     * @param targetUtilization the target utilization per key, within [0, 1]
+     * @param maxObjectsPerKey the maximum number of pooled objects per key
+     * @param maxTotalObjects the total number of object that the pool can contain
+     * @param kp the proportional gain
+     * @param ki the integral gain
+     * @param kd the derivative gain
+     */
+    public static <K> IPool.Controller<K> pidController(final double targetUtilization, final int maxObjectsPerKey, final int maxTotalObjects, final double kp, final double ki, final double kd) {
+
+        return new IPool.Controller<K>() {
+            private final Map<K,Pid> _pids = new HashMap<K,Pid>();
+
+            public boolean shouldIncrement(K key, int objectsForKey, int totalObjects) {
+                return (objectsForKey < maxObjectsPerKey) && (totalObjects < maxTotalObjects);
+            }
+
+            public synchronized Map<K,Integer> adjustment(Map<K,Stats> stats) {
+                Map<K,Integer> adj = new HashMap<K,Integer>();
+
+                // forget about keys which no longer exist
+                _pids.keySet().retainAll(stats.keySet());
+
+                for (Map.Entry<K,Stats> entry : stats.entrySet()) {
+                    Stats s = entry.getValue();
+                    int numObjects = s.getNumWorkers();
+                    if (numObjects == 0) {
+                        continue;
+                    }
+
+                    Pid pid = _pids.get(entry.getKey());
+                    if (pid == null) {
+                        pid = new Pid(kp, ki, kd);
+                        _pids.put(entry.getKey(), pid);
+                    }
+
+                    double error = (s.getMeanUtilization() - targetUtilization) / targetUtilization;
+                    double max = Math.min(1.0, (double) (maxObjectsPerKey - numObjects) / numObjects);
+                    double output = pid.update(error, -0.5, Math.max(-0.5, max));
+
+                    adj.put(entry.getKey(), (int) Math.round(numObjects * output));
+                }
+                return adj;
+            }
+        };
+    }
+
+    /**
+     * A predictive controller with default smoothing factors.
+     *
+     * @param targetUtilization the target utilization per key, within [0, 1]
+     * @param maxObjectsPerKey the maximum number of pooled objects per key
+     * @param maxTotalObjects the total number of object that the pool can contain
+     */
+    public static <K> IPool.Controller<K> predictiveController(double targetUtilization, int maxObjectsPerKey, int maxTotalObjects) {
+        return predictiveController(targetUtilization, maxObjectsPerKey, maxTotalObjects, 0.5, 0.3);
+    }
+
+    /**
+     * A controller which forecasts the acquire rate and hold time for each key one control period
+     * ahead, and sizes each key's objects to keep the forecast load at the target utilization, by
+     * Little's law.
+     *
+     * @param targetUtilization the target utilization per key, within [0, 1]
+     * @param maxObjectsPerKey the maximum number of pooled objects per key
+     * @param maxTotalObjects the total number of object that the pool can contain
+     * @param alpha the smoothing factor for the acquire rate and hold time, within (0, 1]
+     * @param beta the smoothing factor for the trend in the acquire rate, within [0, 1]
+     */
+    public static <K> IPool.Controller<K> predictiveController(final double targetUtilization, final int maxObjectsPerKey, final int maxTotalObjects, final double alpha, final double beta) {
+
+        return new IPool.Controller<K>() {
+            private final Map<K,Forecast> _forecasts = new HashMap<K,Forecast>();
+
+            public boolean shouldIncrement(K key, int objectsForKey, int totalObjects) {
+                return (objectsForKey < maxObjectsPerKey) && (totalObjects < maxTotalObjects);
+            }
+
+            public synchronized Map<K,Integer> adjustment(Map<K,Stats> stats) {
+                Map<K,Integer> adj = new HashMap<K,Integer>();
+
+                // forget about keys which no longer exist
+                _forecasts.keySet().retainAll(stats.keySet());
+
+                for (Map.Entry<K,Stats> entry : stats.entrySet()) {
+                    Stats s = entry.getValue();
+
+                    Forecast forecast = _forecasts.get(entry.getKey());
+                    if (forecast == null) {
+                        forecast = new Forecast(alpha, beta);
+                        _forecasts.put(entry.getKey(), forecast);
+                    }
+
+                    int target = (int) Math.ceil(forecast.update(s) / targetUtilization);
+                    target = Math.min(maxObjectsPerKey, target);
+                    adj.put(entry.getKey(), target - s.getNumWorkers());
+                }
+                return adj;
+            }
+        };
+    }
+
     /**
      * @param generator the pooled object generator
      * @param targetUtilization the target utilization per key, within [0, 1]
@@ -0,0 +1,242 @@
+package io.aleph.dirigiste;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A limit on the total number of worker threads across many executors.  Each executor's
+ * controller is wrapped via 'controller', and the wrapped controller's adjustments are only
+ * granted if they fit within the budget.  When the executors together want more threads than the
+ * budget allows, it's divided between them in proportion to their mean utilization, so executors
+ * with idle threads give them up first.  Executors which don't gather the UTILIZATION metric are
+ * weighted as if fully utilized.
+ *
+ * Shares are only entitlements: a thread is only granted via 'shouldIncrement' if it isn't held by
+ * any other executor, as of the last time that executor reported its worker count.  So when one
+ * executor's share shrinks, the others can't grow into it until it has actually shed those
+ * workers.  Workers which are retiring but still finishing a task aren't counted.
+ */
+public class ThreadBudget {
+
+    // the smallest weight given to any executor, so that idle executors keep a thread
+    private static final double MIN_WEIGHT = 0.01;
+
+    class Member implements Executor.Controller {
+        final Executor.Controller _controller;
+
+        // the number of threads this executor holds, as of its last call to 'shouldIncrement' or
+        // 'adjustment', and the number it wants, as of its last adjustment
+        int _held = 0;
+        int _demand = 1;
+        double _weight = 1.0;
+
+        Member(Executor.Controller controller) {
+            _controller = controller;
+        }
+
+        public boolean shouldIncrement(int numWorkers) {
+            return _controller.shouldIncrement(numWorkers) && claim(this, numWorkers);
+        }
+
+        public int adjustment(Stats stats) {
+            return arbitrate(this, stats, _controller.adjustment(stats));
+        }
+
+        public int adjustment(Stats stats, Map<String,Stats> laneStats) {
+            return arbitrate(this, stats, _controller.adjustment(stats, laneStats));
+        }
+
+        public boolean shouldShed(long queueLatency) {
+            return _controller.shouldShed(queueLatency);
+        }
+
+        public boolean observesQueueLatency() {
+            return _controller.observesQueueLatency();
+        }
+
+        public boolean shrinksWithBacklog() {
+            return _controller.shrinksWithBacklog();
+        }
+    }
+
+    private final int _maxThreadCount;
+    private final List<Member> _members = new ArrayList<Member>();
+
+    /**
+     * @param maxThreadCount  the maximum number of worker threads across every executor
+     */
+    public ThreadBudget(int maxThreadCount) {
+        if (maxThreadCount <= 0) {
+            throw new IllegalArgumentException("maxThreadCount must be positive");
+        }
+        _maxThreadCount = maxThreadCount;
+    }
+
+    /**
+     * @return the maximum number of worker threads across every executor
+     */
+    public int getMaxThreadCount() {
+        return _maxThreadCount;
+    }
+
+    /**
+     * @return the number of threads currently held by every executor
+     */
+    public synchronized int getAllocatedThreadCount() {
+        int n = 0;
+        for (Member m : _members) {
+            n += m._held;
+        }
+        return n;
+    }
+
+    /**
+     * Wraps a controller, so that the executor it's given to shares this budget.  Each wrapped
+     * controller should only be given to a single executor, and should be removed via 'remove'
+     * once that executor is shut down.
+     *
+     * @param controller  the controller which decides how many threads the executor wants
+     */
+    public synchronized Executor.Controller controller(Executor.Controller controller) {
+        Member m = new Member(controller);
+        _members.add(m);
+        return m;
+    }
+
+    /**
+     * Releases any threads held by an executor which has been shut down.
+     *
+     * @param controller  a controller returned by 'controller'
+     */
+    public synchronized void remove(Executor.Controller controller) {
+        _members.remove(controller);
+    }
+
+    ///
+
+    /**
+     * Grants the executor another thread, if no other executor holds it.
+     */
+    private synchronized boolean claim(Member m, int numWorkers) {
+        m._held = numWorkers;
+        if (getAllocatedThreadCount() + 1 > _maxThreadCount) {
+            return false;
+        }
+        m._held = numWorkers + 1;
+        return true;
+    }
+
+    /**
+     * Records what the executor wants, and trims its adjustment to its share of the budget.
+     */
+    private synchronized int arbitrate(Member m, Stats stats, int adjustment) {
+        int numWorkers = Math.max(1, stats.getNumWorkers());
+
+        m._demand = Math.max(1, numWorkers + adjustment);
+        m._weight = stats.getMetrics().contains(Stats.Metric.UTILIZATION)
+            ? Math.max(MIN_WEIGHT, stats.getMeanUtilization())
+            : 1.0;
+
+        // until the executor sheds any workers, they're still held
+        m._held = stats.getNumWorkers();
+
+        int share = shares().get(m);
+        return Math.min(m._demand, share) - numWorkers;
+    }
+
+    /**
+     * Divides the budget via water-filling: executors which want less than their proportional
+     * share get what they want, and what's left is divided between the rest via the largest
+     * remainder method.  Every executor gets at least one thread while the budget lasts, so the
+     * shares never add up to more than the budget.
+     */
+    private Map<Member,Integer> shares() {
+        Map<Member,Integer> shares = new HashMap<Member,Integer>();
+
+        int remaining = _maxThreadCount;
+        List<Member> unsatisfied = new ArrayList<Member>(_members);
+
+        boolean changed = true;
+        while (changed && !unsatisfied.isEmpty()) {
+            changed = false;
+
+            double totalWeight = 0;
+            for (Member m : unsatisfied) {
+                totalWeight += m._weight;
+            }
+
+            for (int i = 0; i < unsatisfied.size(); i++) {
+                Member m = unsatisfied.get(i);
+                if (m._demand <= remaining * (m._weight / totalWeight)) {
+                    shares.put(m, m._demand);
+                    remaining -= m._demand;
+                    unsatisfied.remove(i);
+                    changed = true;
+                    break;
+                }
+            }
+        }
+
+        if (unsatisfied.isEmpty()) {
+            return shares;
+        }
+
+        double totalWeight = 0;
+        for (Member m : unsatisfied) {
+            totalWeight += m._weight;
+        }
+
+        // hand out the whole part of each share, and then what's left to the largest remainders
+        final Map<Member,Double> remainders = new HashMap<Member,Double>();
+        int leftover = remaining;
+        for (Member m : unsatisfied) {
+            double share = remaining * (m._weight / totalWeight);
+            shares.put(m, (int) share);
+            remainders.put(m, share - (int) share);
+            leftover -= (int) share;
+        }
+
+        List<Member> byRemainder = new ArrayList<Member>(unsatisfied);
+        Collections.sort(byRemainder, new Comparator<Member>() {
+                public int compare(Member a, Member b) {
+                    return Double.compare(remainders.get(b), remainders.get(a));
+                }
+            });
+        for (int i = 0; i < leftover && i < byRemainder.size(); i++) {
+            Member m = byRemainder.get(i);
+            shares.put(m, shares.get(m) + 1);
+        }
+
+        // executors left without a thread take one from the largest share, most utilized first,
+        // as long as that leaves it with at least one
+        List<Member> byWeight = new ArrayList<Member>(unsatisfied);
+        Collections.sort(byWeight, new Comparator<Member>() {
+                public int compare(Member a, Member b) {
+                    return Double.compare(b._weight, a._weight);
+                }
+            });
+        for (Member m : byWeight) {
+            if (shares.get(m) > 0) {
+                continue;
+            }
+
+            Member largest = m;
+            for (Member other : unsatisfied) {
+                if (shares.get(other) > shares.get(largest)) {
+                    largest = other;
+                }
+            }
+            if (shares.get(largest) <= 1) {
+                break;
+            }
+            shares.put(largest, shares.get(largest) - 1);
+            shares.put(m, 1);
+        }
+
+        return shares;
+    }
+}
@@ -0,0 +1,398 @@
+package io.aleph.dirigiste;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A task queue for Executor which gives each worker thread its own deque.  Tasks submitted from a
+ * worker go onto that worker's deque, and are run in LIFO order by that worker.  Tasks submitted
+ * from elsewhere are spread across the workers' deques.  Idle workers steal from the other end of
+ * the other workers' deques.
+ *
+ * A worker is any thread which polls the queue, and it's assumed that only the executor's worker
+ * threads will do so.
+ */
+public class WorkStealingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // a worker thread's deque
+    static class Local {
+        final Thread _owner;
+        final ConcurrentLinkedDeque<Runnable> _deque = new ConcurrentLinkedDeque<Runnable>();
+
+        // set before the deque is drained by 'retire'
+        volatile boolean _retired = false;
+
+        Local(Thread owner) {
+            _owner = owner;
+        }
+    }
+
+    private final int _capacity;
+    private final AtomicInteger _count = new AtomicInteger(0);
+
+    // tasks submitted before any workers are registered, or left behind by retired workers
+    private final ConcurrentLinkedDeque<Runnable> _shared = new ConcurrentLinkedDeque<Runnable>();
+    private final CopyOnWriteArrayList<Local> _locals = new CopyOnWriteArrayList<Local>();
+    private final ThreadLocal<Local> _local = new ThreadLocal<Local>();
+    private final AtomicInteger _nextLocal = new AtomicInteger(0);
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+    private final AtomicInteger _waiting = new AtomicInteger(0);
+    private final AtomicInteger _waitingPuts = new AtomicInteger(0);
+
+    public WorkStealingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity  the maximum number of tasks which can be enqueued, beyond which 'offer' will return false
+     */
+    public WorkStealingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        _capacity = capacity;
+    }
+
+    /**
+     * Moves any tasks left on the calling worker's deque onto the shared deque, and unregisters
+     * the worker.  This should be called by a worker thread before it exits.
+     */
+    public void retire() {
+        Local local = _local.get();
+        if (local == null) {
+            return;
+        }
+
+        _local.remove();
+        local._retired = true;
+        _locals.remove(local);
+
+        boolean moved = false;
+        Runnable r = local._deque.pollLast();
+        while (r != null) {
+            _shared.offerFirst(r);
+            moved = true;
+            r = local._deque.pollLast();
+        }
+
+        if (moved) {
+            signalAll();
+        }
+    }
+
+    private Local register() {
+        Local local = _local.get();
+        if (local == null) {
+            local = new Local(Thread.currentThread());
+            _local.set(local);
+            _locals.add(local);
+        }
+        return local;
+    }
+
+    private void signal() {
+        if (_waiting.get() > 0) {
+            _lock.lock();
+            try {
+                _notEmpty.signal();
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private void signalNotFull() {
+        if (_waitingPuts.get() > 0) {
+            _lock.lock();
+            try {
+                _notFull.signal();
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Pushes a task onto another worker's deque.  If that worker retired after we chose it, the
+     * task may have missed the drain in 'retire', so it's moved to the shared deque.
+     */
+    private void push(Local local, Runnable r) {
+        local._deque.offerLast(r);
+        if (local._retired && local._deque.removeLastOccurrence(r)) {
+            _shared.offerLast(r);
+        }
+    }
+
+    private void signalAll() {
+        if (_waiting.get() > 0) {
+            _lock.lock();
+            try {
+                _notEmpty.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Tries to steal a task from the far end of another worker's deque.
+     */
+    private Runnable steal(Local self) {
+        Object[] locals = _locals.toArray();
+        int n = locals.length;
+        if (n == 0) {
+            return null;
+        }
+
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            Local victim = (Local) locals[(start + i) % n];
+            if (victim == self) {
+                continue;
+            }
+
+            Runnable r = victim._deque.pollLast();
+            if (r != null) {
+                return r;
+            }
+
+            // clean up after workers which exited without retiring
+            if (!victim._owner.isAlive() && victim._deque.isEmpty()) {
+                _locals.remove(victim);
+            }
+        }
+        return null;
+    }
+
+    private Runnable tryPoll(Local local) {
+        Runnable r = local == null ? null : local._deque.pollFirst();
+        if (r == null) {
+            r = _shared.pollFirst();
+        }
+        if (r == null) {
+            r = steal(local);
+        }
+        if (r != null) {
+            _count.decrementAndGet();
+            signalNotFull();
+        }
+        return r;
+    }
+
+    ///
+
+    @Override
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+
+        while (true) {
+            int count = _count.get();
+            if (count >= _capacity) {
+                return false;
+            }
+            if (_count.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+
+        Local local = _local.get();
+        if (local != null) {
+            local._deque.offerFirst(r);
+        } else {
+            Object[] locals = _locals.toArray();
+            if (locals.length == 0) {
+                _shared.offerLast(r);
+            } else {
+                int idx = (_nextLocal.getAndIncrement() & Integer.MAX_VALUE) % locals.length;
+                push((Local) locals[idx], r);
+            }
+        }
+
+        signal();
+        return true;
+    }
+
+    /**
+     * Enqueues as many of the tasks as capacity allows, reserving space and waking idle workers
+     * once for the whole batch.
+     *
+     * @return the number of tasks enqueued, which are always a prefix of 'rs'
+     */
+    public int offerAll(List<Runnable> rs) {
+        for (Runnable r : rs) {
+            if (r == null) {
+                throw new NullPointerException();
+            }
+        }
+
+        int n;
+        while (true) {
+            int count = _count.get();
+            n = Math.min(rs.size(), _capacity - count);
+            if (n <= 0) {
+                return 0;
+            }
+            if (_count.compareAndSet(count, count + n)) {
+                break;
+            }
+        }
+
+        Local local = _local.get();
+        Object[] locals = _locals.toArray();
+        for (int i = 0; i < n; i++) {
+            Runnable r = rs.get(i);
+            if (local != null) {
+                local._deque.offerFirst(r);
+            } else if (locals.length == 0) {
+                _shared.offerLast(r);
+            } else {
+                int idx = (_nextLocal.getAndIncrement() & Integer.MAX_VALUE) % locals.length;
+                push((Local) locals[idx], r);
+            }
+        }
+
+        signalAll();
+        return n;
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException {
+        if (offer(r)) {
+            return true;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        _waitingPuts.incrementAndGet();
+        try {
+            while (!offer(r)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = _notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            _waitingPuts.decrementAndGet();
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable r) throws InterruptedException {
+        offer(r, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Runnable poll() {
+        return tryPoll(register());
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Local local = register();
+        Runnable r = tryPoll(local);
+        if (r != null) {
+            return r;
+        }
+
+        long nanos = unit.toNanos(timeout);
+        _lock.lockInterruptibly();
+        _waiting.incrementAndGet();
+        try {
+            while (true) {
+                r = tryPoll(local);
+                if (r != null || nanos <= 0) {
+                    return r;
+                }
+                nanos = _notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            _waiting.decrementAndGet();
+            _lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        Runnable r = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        while (r == null) {
+            r = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        return r;
+    }
+
+    @Override
+    public Runnable peek() {
+        Local local = _local.get();
+        Runnable r = local == null ? null : local._deque.peekFirst();
+        if (r == null) {
+            r = _shared.peekFirst();
+        }
+        if (r == null) {
+            for (Local l : _locals) {
+                r = l._deque.peekLast();
+                if (r != null) {
+                    break;
+                }
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, _count.get());
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return _capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : _capacity - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        int n = 0;
+        while (n < maxElements) {
+            Runnable r = _shared.pollFirst();
+            for (Iterator<Local> it = _locals.iterator(); r == null && it.hasNext(); ) {
+                r = it.next()._deque.pollLast();
+            }
+            if (r == null) {
+                break;
+            }
+            _count.decrementAndGet();
+            c.add(r);
+            n++;
+        }
+        if (n > 0) {
+            signalNotFull();
+        }
+        return n;
+    }
+
+    /**
+     * @return an iterator over a snapshot of the enqueued tasks, which doesn't support removal
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> tasks = new ArrayList<Runnable>(_shared);
+        for (Local l : _locals) {
+            tasks.addAll(l._deque);
+        }
+        return Collections.unmodifiableList(tasks).iterator();
+    }
+}
@@ -3,6 +3,7 @@
     [clojure.test :refer :all])
   (:import
     [java.util
+     LinkedHashMap
      EnumSet]
     [java.util.concurrent
      RejectedExecutionException
@@ -13,7 +14,12 @@
      Executors
      Executor
      Executor$Controller
-     Stats$Metric]))
+     WorkStealingQueue
+     PermitExecutor
+     LaneQueue
+     Stats
+     Stats$Metric
+     ThreadBudget]))
 
 (defn run-producer [^java.util.concurrent.Executor ex n interval]
   (dotimes [_ n]
@@ -134,3 +140,445 @@
                        (- 1 (.getNumWorkers s))))]
     (check-shutdown-now-after (custom-fixed-executor controller) 30)
     (check-shutdown-after (custom-fixed-executor controller) 30)))
+
+(deftest test-work-stealing-executor
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (WorkStealingQueue.)
+             (Executors/fixedController 4) 4 (EnumSet/allOf Stats$Metric)
+             10 100 TimeUnit/MILLISECONDS)
+        latch (CountDownLatch. 1000)]
+    (try
+      ;; tasks submitted from a worker land on its own deque, and are stolen by the others
+      (dotimes [_ 100]
+        (.execute ex
+          (fn []
+            (dotimes [_ 10]
+              (.execute ex #(do (Thread/sleep 1) (.countDown latch)))))))
+      (is (.await latch 10 TimeUnit/SECONDS))
+      (Thread/sleep 200)
+      (is (= 4 (-> ex .getStats .getNumWorkers)))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-work-stealing-queue
+  ;; a put into a full queue waits for a task to be taken
+  (let [q (doto (WorkStealingQueue. 1) (.put #()))
+        put (future (.put q #()) :done)]
+    (is (= :timeout (deref put 100 :timeout)))
+    (is (some? (.poll q)))
+    (is (= :done (deref put 1000 :timeout))))
+
+  ;; tasks offered while workers retire aren't stranded on a retired worker's deque
+  (let [q (WorkStealingQueue.)
+        n 10000
+        polled (atom 0)
+        workers (doall
+                  (repeatedly 4
+                    #(future
+                       (dotimes [_ 200]
+                         (when (.poll q)
+                           (swap! polled inc))
+                         (.retire q)))))]
+    (dotimes [_ n]
+      (.offer q #()))
+    (doseq [w workers] @w)
+    (let [remaining (java.util.ArrayList.)]
+      (.drainTo q remaining)
+      (is (= 0 (.size q)))
+      (is (= n (+ @polled (.size remaining)))))))
+
+(deftest test-permit-executor
+  (let [ex (PermitExecutor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (Executors/fixedController 2) 1 4 (EnumSet/allOf Stats$Metric)
+             10 100 TimeUnit/MILLISECONDS)
+        running (atom 0)
+        max-running (atom 0)
+        latch (CountDownLatch. 6)
+        task #(do
+                (swap! max-running max (swap! running inc))
+                (Thread/sleep 50)
+                (swap! running dec)
+                (.countDown latch))]
+    (try
+      ;; two run at once, four wait for a permit, and the rest are rejected
+      (dotimes [_ 6]
+        (.execute ex task))
+      (is (thrown? RejectedExecutionException (.execute ex task)))
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (is (= 2 @max-running))
+      (is (= 2 (.getPermits ex)))
+      (.shutdown ex)
+      (is (.awaitTermination ex 1 TimeUnit/SECONDS))
+      (finally
+        (.shutdownNow ex)))))
+
+(deftest test-permit-executor-fifo
+  (let [grow? (atom false)
+        ex (PermitExecutor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (reify Executor$Controller
+               (shouldIncrement [_ n] @grow?)
+               (adjustment [_ s] 0))
+             1 10 (EnumSet/allOf Stats$Metric)
+             10 100000 TimeUnit/MILLISECONDS)
+        gate (CountDownLatch. 1)
+        order (atom [])
+        done (CountDownLatch. 2)]
+    (try
+      (.execute ex #(.await gate))
+      (.execute ex #(do (swap! order conj :waiting) (.countDown done)))
+      ;; a new permit goes to the task which was already waiting, not the new one
+      (reset! grow? true)
+      (.execute ex #(do (swap! order conj :new) (.countDown done)))
+      (is (.await done 1 TimeUnit/SECONDS))
+      (is (= [:waiting :new] @order))
+      (finally
+        (.countDown gate)
+        (.shutdown ex)))))
+
+(deftest test-idle-spin
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (SynchronousQueue. false)
+             (Executors/fixedController 2) 2 (EnumSet/noneOf Stats$Metric)
+             10 100 TimeUnit/MILLISECONDS)]
+    (try
+      (.setIdleSpin ex 1 TimeUnit/MILLISECONDS)
+      ;; sequential handoffs shouldn't be rejected while the idle worker is spinning
+      (is (->> (range 1000)
+            (map (fn [_]
+                   (let [latch (CountDownLatch. 1)]
+                     (.execute ex #(.countDown latch))
+                     (.await latch 1 TimeUnit/SECONDS))))
+            (every? true?)))
+      (is (= 2 (-> ex .getStats .getNumWorkers)))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-execute-all
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (SynchronousQueue. false)
+             (Executors/fixedController 64) 1 (EnumSet/allOf Stats$Metric)
+             10 1000 TimeUnit/MILLISECONDS)
+        latch (CountDownLatch. 200)]
+    (try
+      ;; a fan-out of 200 tasks at most doubles the number of workers
+      (.executeAll ex (repeat 200 #(do (Thread/sleep 1) (.countDown latch))))
+      (is (.await latch 5 TimeUnit/SECONDS))
+      (is (<= (-> ex .getStats .getNumWorkers) 2))
+
+      (is (= (range 100)
+            (map deref (.invokeAll ex (map (fn [n] #(do n)) (range 100))))))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-latency-metrics
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (SynchronousQueue. false)
+             (Executors/fixedController 2) 2
+             (EnumSet/of Stats$Metric/QUEUE_LATENCY Stats$Metric/TASK_LATENCY)
+             10 100000 TimeUnit/MILLISECONDS)]
+    (try
+      ;; let the workers start polling
+      (Thread/sleep 50)
+      (is (= 42 @(.submit ex ^Callable #(do (Thread/sleep 20) 42))))
+      (let [latch (CountDownLatch. 1)]
+        (.execute ex #(do (Thread/sleep 20) (.countDown latch)))
+        (.await latch))
+      (Thread/sleep 50)
+      (let [s (.getStats ex)]
+        (is (<= 2e7 (.getTaskLatency s 0.5)))
+        (is (< (.getQueueLatency s 0.5) 2e7)))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-await-termination
+  (let [ex (custom-fixed-executor (Executors/fixedController 4))]
+    (.execute ex #(Thread/sleep 300))
+    (.shutdown ex)
+    (is (not (.awaitTermination ex 10 TimeUnit/MILLISECONDS)))
+    (is (not (.isTerminated ex)))
+    (is (.awaitTermination ex 5 TimeUnit/SECONDS))
+    (is (.isTerminated ex))))
+
+(deftest test-lane-queue-put
+  ;; a put waiting on a full lane isn't left behind when another lane's put is woken first
+  (let [q (doto (LaneQueue. (doto (LinkedHashMap.) (.put "a" (int 1)) (.put "b" (int 2))) 1)
+            (.put "a" #())
+            (.put "b" #()))
+        put-a (future (.put q "a" #()) :done)
+        _ (Thread/sleep 50)
+        put-b (future (.put q "b" #()) :done)]
+    (Thread/sleep 50)
+    ;; the heavier lane is dequeued first, which only makes room for 'put-b'
+    (is (some? (.poll q)))
+    (is (= :done (deref put-b 1000 :timeout)))
+    (is (= :timeout (deref put-a 100 :timeout)))
+    (is (some? (.poll q)))
+    (is (= :done (deref put-a 1000 :timeout)))))
+
+(deftest test-lane-executor
+  (let [lane-stats (promise)
+        ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (LaneQueue. (doto (LinkedHashMap.) (.put "requests" (int 3)) (.put "batch" (int 1))) 1000)
+             (reify Executor$Controller
+               (shouldIncrement [_ n] (< n 1))
+               (adjustment [_ s] 0)
+               (adjustment [_ s lanes]
+                 (deliver lane-stats lanes)
+                 0))
+             1 (EnumSet/allOf Stats$Metric)
+             10 200 TimeUnit/MILLISECONDS)
+        order (atom [])
+        gate (CountDownLatch. 1)
+        done (CountDownLatch. 40)]
+    (try
+      ;; hold the only worker, then fill both lanes
+      (Thread/sleep 50)
+      (.execute ex #(.await gate))
+      (Thread/sleep 50)
+      (dotimes [_ 20]
+        (.execute (.lane ex "batch") #(do (swap! order conj :batch) (.countDown done)))
+        (.execute (.lane ex "requests") #(do (swap! order conj :requests) (.countDown done))))
+      (.countDown gate)
+      (is (.await done 5 TimeUnit/SECONDS))
+
+      ;; requests get three quarters of the worker until their lane drains
+      (is (= 15 (count (filter #{:requests} (take 20 @order)))))
+
+      (let [lanes (deref lane-stats 5000 nil)]
+        (is (= #{"requests" "batch"} (set (keys lanes))))
+        (is (pos? (.getTaskArrivalRate ^Stats (get lanes "batch") 0.99)))
+        (is (pos? (.getQueueLatency ^Stats (get lanes "batch") 0.99)))
+        (is (pos? (.getTaskLatency ^Stats (get lanes "batch") 0.99))))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-queue-latency-shedding
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (java.util.concurrent.LinkedBlockingQueue.)
+             (Executors/queueLatencyController 0.9 10 20 TimeUnit/MILLISECONDS 1) 1
+             (EnumSet/allOf Stats$Metric)
+             10 100000 TimeUnit/MILLISECONDS)]
+    (try
+      ;; a backlog of slow tasks, which should start being shed once they've waited long enough
+      (let [fs (doall (repeatedly 20 #(.submit ex ^Callable (fn [] (Thread/sleep 10) :ok))))
+            results (map #(try @% (catch Exception e (class (.getCause e)))) fs)]
+        (is (= :ok (first results)))
+        (is (some #{RejectedExecutionException} results)))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-queue-latency-shedding-observes-every-task
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (java.util.concurrent.LinkedBlockingQueue.)
+             (Executors/queueLatencyController 0.9 10 20 TimeUnit/MILLISECONDS 1) 1
+             (EnumSet/noneOf Stats$Metric)
+             10 100000 TimeUnit/MILLISECONDS)
+        occupy (fn [ms]
+                 (let [latch (CountDownLatch. 1)]
+                   (.execute ex #(do (.countDown latch) (Thread/sleep ms)))
+                   (.await latch)))]
+    (try
+      (Thread/sleep 50)
+      ;; one task waits over the target, but isn't shed
+      (occupy 30)
+      (is (= :ok @(.submit ex ^Callable (fn [] :ok))))
+
+      ;; the tasks given to 'execute' since then didn't wait, so a later task which is only just
+      ;; over the target isn't shed either
+      (Thread/sleep 200)
+      (occupy 15)
+      (is (= :ok @(.submit ex ^Callable (fn [] :ok))))
+      (finally
+        (.shutdown ex)))))
+
+(deftest test-hill-climbing-controller
+  (let [c (Executors/hillClimbingController 1 16)
+        stats (fn [workers rate]
+                (Stats. (EnumSet/of Stats$Metric/TASK_COMPLETION_RATE) workers
+                  (double-array []) (double-array []) (double-array [rate]) (double-array [])
+                  (long-array []) (long-array []) (long-array [])))]
+    ;; throughput rises with threads up to 8, then falls off
+    (loop [workers 4, i 0, seen []]
+      (if (< i 30)
+        (let [rate (if (<= workers 8) (* 100.0 workers) (- 1600.0 (* 100.0 workers)))
+              n (+ workers (.adjustment c (stats workers rate)))]
+          (recur n (inc i) (conj seen n)))
+        (is (every? #(<= 6 % 10) (drop 20 seen)))))
+    (is (not (.shouldIncrement c 16)))))
+
+(deftest test-hill-climbing-shrinks-with-backlog
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (java.util.concurrent.LinkedBlockingQueue.)
+             (Executors/hillClimbingController 1 16) 1
+             (EnumSet/of Stats$Metric/TASK_COMPLETION_RATE)
+             10 200 TimeUnit/MILLISECONDS)
+        active (atom 0)
+        ;; past four threads, each task gets slower faster than threads are added
+        task #(let [n (swap! active inc)]
+                (try
+                  (Thread/sleep (if (<= n 4) 20 (* 20 (- n 3) (- n 3))))
+                  (finally
+                    (swap! active dec))))]
+    (try
+      ;; there's always a backlog, so the pool must shrink while tasks are queued
+      (dotimes [_ 5000]
+        (.execute ex task))
+      (Thread/sleep 3000)
+      (let [workers (repeatedly 5 #(do (Thread/sleep 200) (-> ex .getStats .getNumWorkers)))]
+        (is (every? #(<= % 7) workers)))
+      (finally
+        (.shutdownNow ex)))))
+
+(deftest test-pid-controller
+  (let [c (Executors/pidController 0.5 64 1.0 0.5 0.0)
+        stats (fn [workers utilization]
+                (Stats. (EnumSet/of Stats$Metric/UTILIZATION) workers
+                  (double-array [utilization]) (double-array []) (double-array []) (double-array [])
+                  (long-array []) (long-array []) (long-array [])))]
+    ;; a persistent error grows the response via the integral term
+    (is (< (.adjustment c (stats 10 0.6)) (.adjustment c (stats 10 0.6))))
+    ;; but saturation doesn't wind it up, so it backs off as soon as the error flips
+    (dotimes [_ 20]
+      (.adjustment c (stats 32 1.0)))
+    (is (neg? (.adjustment c (stats 32 0.25))))
+    ;; and it never asks for more than the maximum
+    (is (= 32 (.adjustment c (stats 32 1.0))))))
+
+(deftest test-predictive-controller
+  (let [c (Executors/predictiveController 0.5 1000)
+        stats (fn [workers rate latency]
+                (Stats. (EnumSet/allOf Stats$Metric) workers
+                  (double-array []) (double-array [rate]) (double-array []) (double-array [])
+                  (long-array []) (long-array [0]) (long-array [latency])))]
+    ;; 100 tasks/sec taking 50ms each is 5 tasks in service, or 10 threads at 50% utilization
+    (is (= 9 (.adjustment c (stats 1 100 5e7))))
+    ;; once the trend is learned, a steady ramp is extrapolated, so we size for more than the
+    ;; last period's load
+    (doseq [rate (range 200 1000 100)]
+      (.adjustment c (stats 10 rate 5e7)))
+    (is (pos? (.adjustment c (stats 100 1000 5e7))))))
+
+(deftest test-burst-scale-up
+  (let [ex (Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+             (java.util.concurrent.LinkedBlockingQueue.)
+             (Executors/fixedController 8) 1
+             (EnumSet/allOf Stats$Metric)
+             10 100000 TimeUnit/MILLISECONDS)
+        gate (CountDownLatch. 1)]
+    (try
+      (.setBurstScaleUp ex 4 1 TimeUnit/SECONDS 2)
+      ;; the queue always accepts tasks, so only the burst detector can add workers before the
+      ;; control period elapses
+      (dotimes [_ 20]
+        (.execute ex #(.await gate)))
+      (Thread/sleep 200)
+      (is (= 8 (-> ex .getStats .getNumWorkers)))
+      (finally
+        (.countDown gate)
+        (.shutdown ex)))))
+
+(defn controller-threads []
+  (->> (Thread/getAllStackTraces)
+    keys
+    (filter #(.startsWith (.getName ^Thread %) "dirigiste-executor-controller"))
+    count))
+
+(deftest test-control-scheduler
+  (let [scheduler (Executors/controlScheduler 1)
+        adjustments (atom 0)
+        threads (controller-threads)
+        executors (doall
+                    (repeatedly 10
+                      #(Executor. (java.util.concurrent.Executors/defaultThreadFactory)
+                         (SynchronousQueue. false)
+                         (reify Executor$Controller
+                           (shouldIncrement [_ n] (< n 2))
+                           (adjustment [_ s] (swap! adjustments inc) 0))
+                         1 (EnumSet/allOf Stats$Metric)
+                         10 50 TimeUnit/MILLISECONDS scheduler)))]
+    (try
+      ;; every executor's control loop runs on the one shared thread
+      (Thread/sleep 500)
+      (is (<= 50 @adjustments))
+      (is (= threads (controller-threads)))
+
+      ;; and stops once its executor is shut down
+      (doseq [ex executors]
+        (.shutdown ex))
+      (Thread/sleep 100)
+      (let [n @adjustments]
+        (Thread/sleep 200)
+        (is (= n @adjustments)))
+      (finally
+        (.shutdownNow scheduler)))))
+
+(deftest test-permit-executor-control-scheduler
+  (let [scheduler (Executors/controlScheduler 1)
+        adjustments (atom 0)
+        threads #(->> (Thread/getAllStackTraces)
+                   keys
+                   (filter (fn [^Thread t] (.startsWith (.getName t) "dirigiste-permit-executor-controller")))
+                   count)
+        before (threads)
+        executors (doall
+                    (repeatedly 10
+                      #(PermitExecutor. (java.util.concurrent.Executors/defaultThreadFactory)
+                         (reify Executor$Controller
+                           (shouldIncrement [_ n] (< n 2))
+                           (adjustment [_ s] (swap! adjustments inc) 0))
+                         1 10 (EnumSet/allOf Stats$Metric)
+                         10 50 TimeUnit/MILLISECONDS scheduler)))]
+    (try
+      (Thread/sleep 500)
+      (is (<= 50 @adjustments))
+      (is (= before (threads)))
+
+      (doseq [ex executors]
+        (.shutdown ex))
+      (Thread/sleep 100)
+      (let [n @adjustments]
+        (Thread/sleep 200)
+        (is (= n @adjustments)))
+      (finally
+        (.shutdownNow scheduler)))))
+
+(deftest test-thread-budget
+  (let [budget (ThreadBudget. 8)
+        wants (fn [n]
+                (reify Executor$Controller
+                  (shouldIncrement [_ _] true)
+                  (adjustment [_ s] (- n (.getNumWorkers s)))))
+        busy (.controller budget (wants 8))
+        idle (.controller budget (wants 2))
+        stats (fn [workers utilization]
+                (Stats. (EnumSet/of Stats$Metric/UTILIZATION) workers
+                  (double-array [utilization]) (double-array []) (double-array []) (double-array [])
+                  (long-array []) (long-array []) (long-array [])))]
+    ;; the busy executor wants 8 threads, but the idle one is entitled to one
+    (is (= 3 (.adjustment busy (stats 4 1.0))))
+    ;; the idle executor wants 2 threads, and gets them since its share of 8 rounds up to 2
+    (is (= -2 (.adjustment idle (stats 4 0.25))))
+    (is (= 8 (.getAllocatedThreadCount budget)))
+    ;; but until it actually sheds its workers, the busy executor can't take them
+    (is (not (.shouldIncrement busy 4)))
+    (.adjustment idle (stats 1 0.25))
+    (is (.shouldIncrement busy 6))
+    (is (not (.shouldIncrement busy 7)))
+    ;; once the idle executor is gone, its thread is free
+    (.remove budget idle)
+    (is (.shouldIncrement busy 7)))
+
+  ;; with more executors than threads, the shares still fit within the budget
+  (let [budget (ThreadBudget. 2)
+        members (repeatedly 4 #(.controller budget
+                                 (reify Executor$Controller
+                                   (shouldIncrement [_ _] true)
+                                   (adjustment [_ s] 2))))
+        stats (Stats. (EnumSet/noneOf Stats$Metric) 1
+                (double-array []) (double-array []) (double-array []) (double-array [])
+                (long-array []) (long-array []) (long-array []))]
+    (doseq [m members]
+      (.adjustment ^Executor$Controller m stats))
+    (let [shares (map #(+ 1 (.adjustment ^Executor$Controller % stats)) members)]
+      (is (= 2 (reduce + shares)))
+      (is (every? #{0 1} shares)))))
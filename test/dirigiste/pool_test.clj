@@ -2,13 +2,25 @@
   (:require
     [clojure.test :refer :all])
   (:import
+    [java.util
+     EnumSet]
     [java.util.concurrent
+     CompletableFuture
+     LinkedBlockingQueue
+     RejectedExecutionException
+     TimeoutException
      TimeUnit]
     [io.aleph.dirigiste
+     Executors
      Pools
      Pool
      IPool$Generator
-     IPool$Controller]))
+     IPool$AsyncGenerator
+     IPool$AcquireCallback
+     IPool$Controller
+     ILeasePool$LeaseCallback
+     Stats
+     Stats$Metric]))
 
 (defn generator [disposed]
   (let [cnt (atom 0)]
@@ -95,3 +107,391 @@
     (is (< 0 (.getTaskLatency stats 0.1) 3e6))
     (is (< 4e6 (.getTaskLatency stats 0.5) 7e6))
     (is (< 9e6 (.getTaskLatency stats 0.9) 12e6))))
+
+(deftest test-single-object-adjustment
+  (let [created (atom 0)
+        grown? (atom false)
+        p (Pool. (simple-generator (fn [_] (swap! created inc)))
+            (controller
+              (fn [stats]
+                ;; ask for exactly one more object, once
+                (if (and (contains? stats :foo) (compare-and-set! grown? false true))
+                  {:foo (int 1)}
+                  {}))
+              3)
+            1e5 10 50 TimeUnit/MILLISECONDS)]
+    (try
+      (.release p :foo (.acquire p :foo))
+      (Thread/sleep 300)
+      (is @grown?)
+      (is (= 2 @created))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-total-objects-across-keys
+  (let [created (atom 0)
+        p (pool
+            (simple-generator (fn [_] (swap! created inc)))
+            (Pools/fixedController 2 5))]
+    (try
+      (->> (range 8)
+        (map (fn [i]
+               (future
+                 (dotimes [_ 1e3]
+                   (let [k (mod i 4)
+                         x (.acquire p k)]
+                     (.release p k x))))))
+        doall
+        (map deref)
+        doall)
+      (is (<= @created 5))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-lease-ops
+  (let [disposed (atom #{})
+        p (pool (generator disposed) (controller (constantly {}) 3))]
+    (try
+      (let [l (.acquireLease p :foo)]
+        (is (= :foo (.getKey l)))
+        (is (= 1 (.getObject l)))
+        (.release p l)
+        (is (thrown? IllegalStateException (.release p l))))
+      (let [l (.acquireLease p :foo)]
+        (is (= 1 (.getObject l)))
+        (.dispose p l)
+        (is (thrown? IllegalStateException (.dispose p l))))
+      (is (= #{[:foo 1]} @disposed))
+      (is (= 2 (.acquire p :foo)))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-async-generator
+  (let [created (atom 0)
+        p (Pool.
+            ^IPool$AsyncGenerator
+            (reify IPool$AsyncGenerator
+              (generate [_ k]
+                (if (= :fail k)
+                  (CompletableFuture/supplyAsync
+                    (reify java.util.function.Supplier
+                      (get [_] (throw (Exception. "Failed")))))
+                  (CompletableFuture/supplyAsync
+                    (reify java.util.function.Supplier
+                      (get [_] (Thread/sleep 10) (swap! created inc))))))
+              (destroy [_ k v]))
+            (int 2)
+            ^IPool$Controller (Pools/fixedController 4 8)
+            (int 1e5)
+            25
+            10000
+            TimeUnit/MILLISECONDS)]
+    (try
+      (let [xs (->> (range 4)
+                 (map (fn [_] (future (.acquire p :foo))))
+                 doall
+                 (map deref)
+                 doall)]
+        (is (= #{1 2 3 4} (set xs)))
+        (doseq [x xs]
+          (.release p :foo x)))
+      (is (= 4 @created))
+      (is (thrown-with-msg? Exception #"Failed"
+            (.acquire p :fail)))
+      (finally
+        (.shutdown p)))))
+
+;; a waiter which was coalesced onto a create started by a request that has since been satisfied
+;; should still hear about that create failing
+(deftest test-async-generator-failure-after-coalescing
+  (let [creates (atom [])
+        p (Pool.
+            ^IPool$AsyncGenerator
+            (reify IPool$AsyncGenerator
+              (generate [_ k]
+                (let [f (CompletableFuture.)]
+                  (swap! creates conj f)
+                  f))
+              (destroy [_ k v]))
+            (int 2)
+            ^IPool$Controller (Pools/fixedController 2 2)
+            (int 1e5)
+            25
+            10000
+            TimeUnit/MILLISECONDS)
+        callback (fn [p]
+                   (reify IPool$AcquireCallback
+                     (handleObject [_ obj] (deliver p obj))
+                     (handleError [_ e] (deliver p e))))]
+    (try
+      (let [first (future (.acquire p :foo))]
+        (Thread/sleep 50)
+        (.complete ^CompletableFuture (nth @creates 0) 1)
+        (is (= 1 @first)))
+
+      ;; A starts the second create, but is satisfied by a release
+      (let [a (promise)
+            b (promise)]
+        (.acquire p :foo (callback a))
+        (is (= 2 (count @creates)))
+        (.release p :foo 1)
+        (is (= 1 (deref a 1000 nil)))
+
+        ;; B is coalesced onto the second create, which then fails
+        (.acquire p :foo (callback b))
+        (is (= 2 (count @creates)))
+        (.completeExceptionally ^CompletableFuture (nth @creates 1) (Exception. "Failed"))
+        (is (instance? Exception (deref b 1000 nil))))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-async-generator-failure-with-more-waiters-than-creates
+  (let [p (Pool.
+            ^IPool$AsyncGenerator
+            (reify IPool$AsyncGenerator
+              (generate [_ k]
+                (CompletableFuture/supplyAsync
+                  (reify java.util.function.Supplier
+                    (get [_]
+                      (Thread/sleep 50)
+                      (throw (Exception. "Failed"))))))
+              (destroy [_ k v]))
+            (int 2)
+            ^IPool$Controller (Pools/fixedController 10 10)
+            (int 1e5)
+            25
+            10000
+            TimeUnit/MILLISECONDS)
+        results (repeatedly 4 promise)]
+    (try
+      ;; only two creates run at once, but every waiter hears about the failure
+      (doseq [r results]
+        (.acquire p :foo
+          (reify IPool$AcquireCallback
+            (handleObject [_ obj] (deliver r obj))
+            (handleError [_ e] (deliver r e)))))
+      (doseq [r results]
+        (is (instance? Exception (deref r 1000 nil))))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-min-idle
+  (let [created (atom 0)
+        p (pool
+            (simple-generator (fn [_] (swap! created inc)))
+            (Pools/fixedController 4 4))]
+    (try
+      (.setMinIdle p 2)
+      (.release p :foo (.acquire p :foo))
+      (Thread/sleep 200)
+      (is (= 2 @created))
+      (let [x (.acquire p :foo)
+            y (.acquire p :foo)]
+        (Thread/sleep 200)
+        (is (= 4 @created))
+        (.release p :foo x)
+        (.release p :foo y))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-idle-timeout-and-max-lifetime
+  (let [disposed (atom #{})
+        p (pool (generator disposed) (controller (constantly {}) 4))]
+    (try
+      (.setIdleTimeout p 100 TimeUnit/MILLISECONDS)
+      (.release p :foo (.acquire p :foo))
+      (Thread/sleep 400)
+      (is (= #{[:foo 1]} @disposed))
+
+      (.setIdleTimeout p 0 TimeUnit/MILLISECONDS)
+      (.setMaxLifetime p 100 TimeUnit/MILLISECONDS)
+      (let [x (.acquire p :foo)]
+        (is (= 2 x))
+        (Thread/sleep 200)
+        (.release p :foo x)
+        (is (= #{[:foo 1] [:foo 2]} @disposed)))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-acquire-timeout
+  (let [p (pool
+            (simple-generator (fn [_] (Object.)))
+            (Pools/fixedController 1 1))]
+    (try
+      (let [x (.acquire p :foo)
+            err (promise)]
+        (is (thrown? TimeoutException
+              (.acquire p :foo 50 TimeUnit/MILLISECONDS)))
+        (.acquire p :foo 50 TimeUnit/MILLISECONDS
+          (reify IPool$AcquireCallback
+            (handleObject [_ obj]
+              (deliver err obj))
+            (handleError [_ e]
+              (deliver err e))))
+        (is (instance? TimeoutException (deref err 1000 nil)))
+
+        ;; the abandoned requests shouldn't be handed the object
+        (.release p :foo x)
+        (is (= x (.acquire p :foo 50 TimeUnit/MILLISECONDS))))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-default-handle-error
+  (let [p (pool
+            (simple-generator (fn [_] (Object.)))
+            (Pools/fixedController 1 1))
+        uncaught (promise)
+        handler (Thread/getDefaultUncaughtExceptionHandler)]
+    (Thread/setDefaultUncaughtExceptionHandler
+      (reify Thread$UncaughtExceptionHandler
+        (uncaughtException [_ t e]
+          (deliver uncaught e))))
+    (try
+      (let [x (.acquire p :foo)]
+        ;; a callback which doesn't handle errors still doesn't lose the timeout
+        (.acquire p :foo 50 TimeUnit/MILLISECONDS
+          (reify IPool$AcquireCallback
+            (handleObject [_ obj])))
+        (is (instance? TimeoutException (deref uncaught 1000 nil)))
+        (.release p :foo x))
+      (finally
+        (Thread/setDefaultUncaughtExceptionHandler handler)
+        (.shutdown p)))))
+
+(deftest test-satisfied-timed-requests-are-released
+  (let [p (pool
+            (simple-generator (fn [_] (Object.)))
+            (Pools/fixedController 1 1))
+        deadlines (doto (.getDeclaredField Pool "_deadlines") (.setAccessible true))
+        leases (LinkedBlockingQueue.)]
+    (try
+      (let [x (.acquire p :foo)]
+        (dotimes [_ 1000]
+          (.acquireLease p :foo 60 TimeUnit/SECONDS
+            (reify ILeasePool$LeaseCallback
+              (handleLease [_ lease]
+                (.put leases lease)))))
+        ;; let the control loop schedule their deadlines
+        (Thread/sleep 100)
+        (is (= 1000 (.size (.get deadlines p))))
+
+        ;; cycle every request through the one object
+        (.release p :foo x)
+        (dotimes [_ 1000]
+          (.release p (.take leases)))
+        (Thread/sleep 100)
+        (is (< (.size (.get deadlines p)) 10)))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-thread-affinity
+  (let [disposed (atom #{})
+        p (pool (generator disposed) (controller (constantly {}) 4))]
+    (try
+      (.setThreadAffinity p true)
+      (let [x (.acquire p :foo)
+            y (.acquire p :foo)]
+        (.release p :foo x)
+        (.release p :foo y)
+        ;; the last object released by this thread is handed back first
+        (is (= y (.acquire p :foo)))
+        ;; but it stays on the queue, and isn't handed out twice
+        (is (= x @(future (.acquire p :foo))))
+        (is (= 3 (.acquire p :foo))))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-bounded-queue
+  (let [p (pool
+            (simple-generator (fn [_] (Object.)))
+            (Pools/fixedController 1 1)
+            2)]
+    (try
+      (let [x (.acquire p :foo)
+            acquired (atom [])
+            callback (reify IPool$AcquireCallback
+                       (handleObject [_ obj]
+                         (swap! acquired conj obj)))]
+        (.acquire p :foo callback)
+        (.acquire p :foo callback)
+        (is (thrown? RejectedExecutionException
+              (.acquire p :foo callback)))
+
+        ;; waiters are handed objects in order
+        (.release p :foo x)
+        (is (= [x] @acquired))
+        (.release p :foo x)
+        (is (= [x x] @acquired)))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-lifo-reuse
+  (let [p (pool (generator (atom #{})) (controller (constantly {}) 3))]
+    (try
+      (let [objs (doall (repeatedly 3 #(.acquire p :foo)))]
+        (doseq [x objs]
+          (.release p :foo x))
+        (is (= 1 (.acquire p :foo)))
+        (.release p :foo 1)
+
+        (.setLifo p true)
+        (is (= 1 (.acquire p :foo)))
+        (.release p :foo 1)
+        (is (= 1 (.acquire p :foo))))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-pid-controller
+  (let [c (Pools/pidController 0.5 10 100)
+        stats (fn [objects utilization]
+                (Stats. (EnumSet/of Stats$Metric/UTILIZATION) objects
+                  (double-array [utilization]) (double-array []) (double-array []) (double-array [])
+                  (long-array []) (long-array []) (long-array [])))]
+    (is (= {:foo 5} (into {} (.adjustment c {:foo (stats 5 1.0)}))))
+    (is (neg? (get (.adjustment c {:foo (stats 10 0.1)}) :foo)))
+    (is (= {} (into {} (.adjustment c {:bar (stats 0 0.0)}))))))
+
+(deftest test-predictive-controller
+  (let [c (Pools/predictiveController 0.5 20 100)
+        stats (fn [objects rate latency]
+                (Stats. (EnumSet/allOf Stats$Metric) objects
+                  (double-array []) (double-array [rate]) (double-array []) (double-array [])
+                  (long-array []) (long-array [0]) (long-array [latency])))]
+    (is (= {:foo 9} (into {} (.adjustment c {:foo (stats 1 100 5e7)}))))
+    (is (= {:foo 10} (into {} (.adjustment c {:foo (stats 10 1000 5e7)}))))))
+
+(deftest test-burst-scale-up
+  (let [limit (atom 1)
+        p (Pool. (generator (atom #{}))
+            (reify IPool$Controller
+              (shouldIncrement [_ key objects-for-key total-objects]
+                (< total-objects @limit))
+              (adjustment [_ key->stats]
+                {}))
+            1e5 25 1e5 TimeUnit/MILLISECONDS)
+        acquired (promise)]
+    (try
+      (.setBurstScaleUp p 1 1 TimeUnit/SECONDS 1)
+      (is (= 1 (.acquire p :foo)))
+      (.acquire p :foo
+        (reify IPool$AcquireCallback
+          (handleObject [_ obj]
+            (deliver acquired obj))))
+      ;; once the controller allows it, the waiting request gets an object without a release
+      (reset! limit 2)
+      (is (= 2 (deref acquired 1000 nil)))
+      (finally
+        (.shutdown p)))))
+
+(deftest test-control-scheduler
+  (let [scheduler (Executors/controlScheduler 1)
+        stats (promise)
+        p (Pool. (generator (atom #{}))
+            (controller #(do (deliver stats %) {}) 10)
+            (int 1e5) 25 100 TimeUnit/MILLISECONDS scheduler)]
+    (try
+      (is (= 1 (.acquire p :foo)))
+      (is (contains? (deref stats 1000 {}) :foo))
+      (finally
+        (.shutdown p)
+        (.shutdownNow scheduler)))))